@@ -0,0 +1,23 @@
+package simpledb;
+
+/**
+ * BatchDbIterator is a DbIterator that can also hand out its tuples a batch
+ * at a time. Moving a whole {@link TupleBatch} per call, instead of one
+ * Tuple per hasNext()/next() pair, lets operators work on columns of
+ * primitive values in tight loops.
+ * <p>
+ * The two ways of reading may be mixed: nextBatch returns the tuples that
+ * follow the last one returned by next, and vice versa.
+ *
+ * @see TupleBatch#fetch(DbIterator)
+ */
+public interface BatchDbIterator extends DbIterator {
+  /**
+   * Returns the next batch of tuples from the operator.
+   *
+   * @return a batch holding at least one tuple, or null if there are no
+   *   more tuples.
+   * @throws IllegalStateException If the iterator has not been opened
+   */
+  public TupleBatch nextBatch() throws DbException, TransactionAbortedException;
+}
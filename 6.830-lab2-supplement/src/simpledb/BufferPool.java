@@ -3,7 +3,23 @@ package simpledb;
 import simpledb.*;
 
 import java.io.*;
-import java.util.HashMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -13,6 +29,35 @@ import java.util.HashMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Locks are page-level shared and exclusive locks, granted by a
+ * {@link LockManager} and held until transactionComplete (strict two-phase
+ * locking).  A request without a transaction (a null tid) takes no lock.
+ * <p>
+ * <u> Concurrency note: </u>
+ * <p>
+ * The page table is a ConcurrentHashMap, so a hit takes no lock at all.
+ * Replacement state is split into stripes, each with its own lock, its own
+ * EvictionPolicy and its own scan ring; a page always belongs to the stripe
+ * chosen by its hash. A miss reads the page from disk without holding any
+ * lock, and concurrent misses on the same page wait for a single read.
+ * Evicting a clean page only locks the stripe it lives in, and the page
+ * itself while checking that it is still clean: HeapFile changes a page and
+ * marks it dirty under that same monitor, and only once it has checked
+ * that the page it got is still resident.
+ * <p>
+ * Pages can also be requested ahead of time with {@link #prefetchPage};
+ * they are then read on a small background I/O pool through the same path
+ * as a miss, so a getPage that arrives while the read is in flight simply
+ * waits for it.
+ * <p>
+ * Flushing still synchronizes on the BufferPool before taking a stripe
+ * lock, because it writes log records; see the locking note in LogFile.
+ * <p>
+ * In STEAL mode a background page writer can be started to trickle dirty
+ * pages to disk, those next in line for eviction first, so that eviction
+ * rarely has to flush and few pages wait in the dirty page table of the
+ * log when a checkpoint is taken.
  * 
  * @Threadsafe, all fields are final
  */
@@ -25,23 +70,258 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
-    int numPages                = -1;
-    HashMap<PageId, Page> pool  = new HashMap<PageId, Page>();
+    /** Eviction policy used when none is given to the constructor. */
+    public static final String DEFAULT_EVICTION_POLICY = "lru";
+
+    /** Pages written by each round of the background page writer, by default. */
+    public static final int DEFAULT_PAGE_WRITER_PAGES = 8;
+
+    /* Hits buffered per stripe before they are dropped, and the number of
+     * buffered hits at which a hit tries to apply them to the policy. */
+    private static final int ACCESS_BUFFER_SIZE = 128;
+    private static final int ACCESS_DRAIN_THRESHOLD = 32;
+
+    /* Background reads. Prefetching is best effort: requests that do not
+     * fit in the queue are dropped. */
+    private static final int READ_AHEAD_THREADS = 2;
+    private static final int READ_AHEAD_QUEUE = 64;
+    private static final ExecutorService readAheadExecutor = new ThreadPoolExecutor(
+            READ_AHEAD_THREADS, READ_AHEAD_THREADS, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(READ_AHEAD_QUEUE),
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "simpledb-read-ahead");
+                    t.setDaemon(true);
+                    return t;
+                }
+            },
+            new ThreadPoolExecutor.DiscardPolicy());
+
+    final int numPages;
+    final ConcurrentHashMap<PageId, Page> pool = new ConcurrentHashMap<PageId, Page>();
+    private final ConcurrentHashMap<PageId, FutureTask<Page>> loading =
+            new ConcurrentHashMap<PageId, FutureTask<Page>>();
+    /* pages in the pool plus slots reserved by loads in progress */
+    private final AtomicInteger used = new AtomicInteger(0);
+    private final AtomicInteger nextVictimStripe = new AtomicInteger(0);
+    private final Stripe[] stripes;
+    private final boolean steal;
+
+    /* pages read by a prefetch that nobody has asked for yet */
+    private final Set<PageId> prefetched = ConcurrentHashMap.newKeySet();
+    private final AtomicLong prefetchReads = new AtomicLong(0);
+    private final AtomicLong prefetchHits = new AtomicLong(0);
+    private final AtomicLong prefetchWasted = new AtomicLong(0);
+
+    /* background page writer, STEAL only */
+    private final Object pageWriterLock = new Object();
+    private PageWriter pageWriter = null; // guarded by pageWriterLock
+    private final AtomicInteger nextWriterStripe = new AtomicInteger(0);
+    private final AtomicLong backgroundWrites = new AtomicLong(0);
+
+    private final LockManager lockManager = new LockManager();
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * A slice of the replacement state. Everything except the hit buffer is
+     * guarded by lock.
+     */
+    private class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        final EvictionPolicy policy;
+
+        /* Pages admitted by sequential scans, oldest first. A scan recycles
+         * these before it is allowed to evict anything else, so a large
+         * scan only ever occupies ringSize pages of the stripe. */
+        final ArrayDeque<PageId> ring = new ArrayDeque<PageId>();
+        final Set<PageId> ringMembers = ConcurrentHashMap.newKeySet();
+        final int ringSize;
+
+        /* Hits recorded without the lock and applied to the policy later.
+         * When the buffer is full further hits are dropped, which only
+         * makes the policy's view of recency slightly less precise. */
+        final ConcurrentLinkedQueue<PageId> hits = new ConcurrentLinkedQueue<PageId>();
+        final AtomicInteger pendingHits = new AtomicInteger(0);
+
+        Stripe(EvictionPolicy policy, int ringSize) {
+            this.policy = policy;
+            this.ringSize = ringSize;
+        }
+
+        /** Records a hit; never blocks. */
+        void recordHit(PageId pid, boolean sequential) {
+            if (sequential && ringMembers.contains(pid)) {
+                return;
+            }
+            if (pendingHits.get() < ACCESS_BUFFER_SIZE) {
+                pendingHits.incrementAndGet();
+                hits.add(pid);
+            }
+            if (pendingHits.get() >= ACCESS_DRAIN_THRESHOLD && lock.tryLock()) {
+                try {
+                    drainHits();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        /** Applies buffered hits to the policy. Requires lock. */
+        void drainHits() {
+            PageId pid;
+            while ((pid = hits.poll()) != null) {
+                pendingHits.decrementAndGet();
+                if (!pool.containsKey(pid)) {
+                    continue;
+                }
+                // a hit without the sequential hint promotes a ring page
+                if (ringMembers.remove(pid)) {
+                    ring.remove(pid);
+                }
+                policy.pageAccessed(pid);
+            }
+        }
+
+        /** Makes a freshly read page resident. Requires lock. */
+        void admit(PageId pid, Page p, boolean sequential) {
+            pool.put(pid, p);
+            policy.pageAdded(pid);
+            if (sequential) {
+                ring.add(pid);
+                ringMembers.add(pid);
+            }
+        }
+
+        /** Drops a resident page and frees its slot. Requires lock. */
+        boolean remove(PageId pid) {
+            if (pool.remove(pid) == null) {
+                return false;
+            }
+            policy.pageRemoved(pid);
+            if (ringMembers.remove(pid)) {
+                ring.remove(pid);
+            }
+            if (prefetched.remove(pid)) {
+                prefetchWasted.incrementAndGet();
+            }
+            used.decrementAndGet();
+            return true;
+        }
+
+        /**
+         * Evicts a page unless it is dirty. The page is checked under its
+         * monitor, which HeapFile holds from changing a page to marking it
+         * dirty, so a page is never evicted with a change not marked yet.
+         * Requires lock.
+         */
+        boolean removeIfClean(PageId pid) {
+            Page p = pool.get(pid);
+            if (p == null) {
+                return false;
+            }
+            synchronized (p) {
+                return p.isDirty() == null && remove(pid);
+            }
+        }
+
+        /** Evicts the oldest clean page of the scan ring, if any. Requires lock. */
+        boolean recycleRingPage() {
+            Iterator<PageId> it = ring.iterator();
+            while (it.hasNext()) {
+                PageId pid = it.next();
+                Page p = pool.get(pid);
+                if (p != null && p.isDirty() == null && removeIfClean(pid)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Returns the first page the policy proposes that may be evicted,
+         * or null. Dirty pages qualify only if allowDirty. Requires lock.
+         */
+        PageId pickVictim(boolean allowDirty) {
+            Iterator<PageId> candidates = policy.evictionCandidates();
+            while (candidates.hasNext()) {
+                PageId pid = candidates.next();
+                Page p = pool.get(pid);
+                if (p != null && (allowDirty || p.isDirty() == null)) {
+                    return pid;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, using the
+     * default eviction policy and NO STEAL.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
         // some code goes here
+        this(numPages, DEFAULT_EVICTION_POLICY, false);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policyName the eviction policy, see {@link #createEvictionPolicy}.
+     * @param steal if false, dirty pages are never evicted (NO STEAL) and
+     *   getPage fails when every resident page is dirty; if true, a dirty
+     *   page is flushed and evicted when no clean page can be found.
+     */
+    public BufferPool(int numPages, String policyName, boolean steal) {
         this.numPages = numPages;
+        this.steal    = steal;
+
+        // a power of two, and at least 8 pages per stripe so that each
+        // stripe's policy still has a meaningful history
+        int n = Math.min(Runtime.getRuntime().availableProcessors(), numPages / 8);
+        n = Integer.highestOneBit(Math.max(n, 1));
+        int ringSize = Math.max(1, Math.min(numPages / 4, 32) / n);
+        this.stripes = new Stripe[n];
+        for (int i = 0; i < n; i++) {
+            this.stripes[i] = new Stripe(createEvictionPolicy(policyName, (numPages + n - 1) / n), ringSize);
+        }
+    }
+
+    /**
+     * Creates an eviction policy by name.
+     *
+     * @param name one of "lru", "clock" or "2q" (case insensitive).
+     * @param numPages the number of pages the policy will manage.
+     * @throws IllegalArgumentException if the name is unknown.
+     */
+    public static EvictionPolicy createEvictionPolicy(String name, int numPages) {
+        String n = name.trim().toLowerCase();
+        if (n.equals("lru"))
+            return new LruEvictionPolicy();
+        if (n.equals("clock"))
+            return new ClockEvictionPolicy(numPages);
+        if (n.equals("2q"))
+            return new TwoQueueEvictionPolicy(numPages);
+        throw new IllegalArgumentException("Unknown eviction policy " + name);
+    }
+
+    /**
+     * @return the maximum number of pages in this buffer pool.
+     */
+    public int getNumPages() {
+        return this.numPages;
     }
     
     public static int getPageSize() {
       return PAGE_SIZE;
     }
 
+    private Stripe stripeOf(PageId pid) {
+        int h = pid.hashCode() * 0x9E3779B9;
+        return this.stripes[(h ^ (h >>> 16)) & (this.stripes.length - 1)];
+    }
+
     /**
      * Retrieve the specified page with the associated permissions.
      * Will acquire a lock and may block if that lock is held by another
@@ -56,31 +336,196 @@ public class BufferPool {
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
      * @param perm the requested permissions on the page
+     * @throws TransactionAbortedException if the lock could not be acquired
+     *   in time, see {@link LockManager}
      */
-    public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, perm, false);
+    }
+
+    /**
+     * Retrieve the specified page with the associated permissions, with a
+     * hint about the access pattern.
+     * <p>
+     * Pages that a sequential scan brings in are kept in a small ring: once
+     * the ring is full, the scan reuses its own oldest clean page instead of
+     * evicting pages other queries are working with. A ring page requested
+     * again without the hint is promoted to an ordinary page.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param sequential true if the page is read as part of a scan that is
+     *   unlikely to revisit it soon
+     * @see HeapFile#iterator
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm,
+                        boolean sequential)
         throws TransactionAbortedException, DbException {
         // some code goes here
+        if(tid != null){
+            this.lockManager.acquire(tid, pid, perm);
+        }
 
-        if(this.pool.containsKey(pid)){
-            return this.pool.get(pid);
+        Page p = this.pool.get(pid);
+        if(p != null){
+            stripeOf(pid).recordHit(pid, sequential);
+        }else{
+            p = fetch(pid, sequential, false);
         }
 
-        /*
-        * We can't find the cached page in the BufferPool.
-        * We should add this page into the buffer pool. and then return it.
-         */
-        Page p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        if(p != null && this.prefetched.remove(pid)){
+            this.prefetchHits.incrementAndGet();
+        }
+        return p;
+    }
+
+    /**
+     * Asks for a page to be read into the buffer pool in the background, if
+     * it is neither resident nor already being read. No lock is acquired on
+     * behalf of any transaction; a later getPage does that as usual. Errors
+     * are ignored, since the page will simply be read again on demand.
+     *
+     * @param pid the ID of the page to read ahead
+     * @param sequential the access hint to admit the page with, see
+     *   {@link #getPage(TransactionId, PageId, Permissions, boolean)}
+     */
+    public void prefetchPage(final PageId pid, final boolean sequential) {
+        if(isCached(pid)){
+            return;
+        }
+        readAheadExecutor.execute(new Runnable() {
+            public void run() {
+                try {
+                    fetch(pid, sequential, true);
+                } catch (Exception e) {
+                    Debug.log("read-ahead of page %s failed: %s", pid, e);
+                }
+            }
+        });
+    }
 
+    /**
+     * @return true if this very page object is resident, rather than a copy
+     *   that was evicted.
+     */
+    boolean isResident(Page p) {
+        return this.pool.get(p.getId()) == p;
+    }
+
+    /**
+     * @return true if the page is resident or being read.
+     */
+    public boolean isCached(PageId pid) {
+        return this.pool.containsKey(pid) || this.loading.containsKey(pid);
+    }
+
+    /** @return the number of pages read from disk by prefetches. */
+    public long getPrefetchReads() {
+        return this.prefetchReads.get();
+    }
+
+    /** @return the number of prefetched pages later requested by getPage. */
+    public long getPrefetchHits() {
+        return this.prefetchHits.get();
+    }
+
+    /** @return the number of prefetched pages evicted before being requested. */
+    public long getPrefetchWasted() {
+        return this.prefetchWasted.get();
+    }
+
+    /**
+     * Returns the page once it is resident, reading it unless another
+     * thread is already doing so. Only one thread reads a given page; the
+     * others wait for its result.
+     */
+    private Page fetch(PageId pid, boolean sequential, boolean prefetch) throws DbException {
+        final PageId loadPid = pid;
+        final boolean loadSequential = sequential;
+        final boolean loadPrefetch = prefetch;
+        FutureTask<Page> task = new FutureTask<Page>(new Callable<Page>() {
+            public Page call() throws DbException {
+                return load(loadPid, loadSequential, loadPrefetch);
+            }
+        });
+        FutureTask<Page> running = this.loading.putIfAbsent(pid, task);
+        if(running == null){
+            running = task;
+            try {
+                task.run();
+            } finally {
+                this.loading.remove(pid, task);
+            }
+        }
+
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted while waiting for page " + pid);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DbException)
+                throw (DbException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Reads a page from disk and makes it resident, evicting pages as
+     * needed. Runs without holding any lock while reading.
+     */
+    private Page load(PageId pid, boolean sequential, boolean prefetch) throws DbException {
+        // another thread may have finished loading it just before we started
+        Page p = this.pool.get(pid);
+        if(p != null){
+            return p;
+        }
+
+        p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
         if(p == null){
             return p;
         }
 
-        if((this.pool.size() + 1) > this.numPages){
-            this.evictPage();
+        Stripe stripe = stripeOf(pid);
+        if(sequential){
+            stripe.lock.lock();
+            try {
+                if(stripe.ring.size() >= stripe.ringSize){
+                    stripe.recycleRingPage();
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
         }
 
-        this.pool.putIfAbsent(pid, p);
+        // reserve a slot, evicting until one is free
+        while(true){
+            int n = this.used.get();
+            if(n < this.numPages){
+                if(this.used.compareAndSet(n, n + 1)){
+                    break;
+                }
+            }else{
+                this.evictPage();
+            }
+        }
 
+        stripe.lock.lock();
+        try {
+            stripe.drainHits();
+            if(prefetch){
+                this.prefetchReads.incrementAndGet();
+                this.prefetched.add(pid);
+            }
+            stripe.admit(pid, p, sequential);
+        } finally {
+            stripe.lock.unlock();
+        }
         return p;
     }
 
@@ -96,6 +541,7 @@ public class BufferPool {
     public  void releasePage(TransactionId tid, PageId pid) {
         // some code goes here
         // not necessary for lab1|lab2
+        this.lockManager.release(tid, pid);
     }
 
     /**
@@ -106,13 +552,19 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        transactionComplete(tid, true);
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
         // not necessary for lab1|lab2
-        return false;
+        return this.lockManager.holdsLock(tid, p);
+    }
+
+    /** @return the lock manager, for its settings and wait metrics. */
+    public LockManager getLockManager() {
+        return this.lockManager;
     }
 
     /**
@@ -126,6 +578,19 @@ public class BufferPool {
         throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        try {
+            if (commit) {
+                flushPages(tid);
+            } else {
+                // updates that never reached the log or the disk
+                for (Page p : this.pool.values()) {
+                    if (tid.equals(p.isDirty()))
+                        discardPage(p.getId());
+                }
+            }
+        } finally {
+            this.lockManager.releaseAll(tid);
+        }
     }
 
     /**
@@ -146,6 +611,13 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        for (Page p : file.insertTuple(tid, t)) {
+            // not while flushPage is writing the page out, see there
+            synchronized (p) {
+                p.markDirty(true, tid);
+            }
+        }
     }
 
     /**
@@ -165,6 +637,15 @@ public class BufferPool {
         throws DbException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
+        RecordId rid = t.getRecordId();
+        if (rid == null) {
+            throw new DbException("tuple is not stored in any table");
+        }
+        DbFile file = Database.getCatalog().getDatabaseFile(rid.getPageId().getTableId());
+        Page p = file.deleteTuple(tid, t);
+        synchronized (p) {
+            p.markDirty(true, tid);
+        }
     }
 
     /**
@@ -175,7 +656,9 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-
+        for (PageId pid : this.pool.keySet()) {
+            this.flushPage(pid);
+        }
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -183,18 +666,193 @@ public class BufferPool {
         buffer pool doesn't keep a rolled back page in its
         cache.
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // only necessary for lab5
+        Stripe stripe = stripeOf(pid);
+        stripe.lock.lock();
+        try {
+            stripe.remove(pid);
+        } finally {
+            stripe.lock.unlock();
+        }
     }
 
     /**
-     * Flushes a certain page to disk
+     * Flushes a certain page to disk. The page is locked meanwhile, so that
+     * the transaction dirtying it cannot change it or mark it dirty between
+     * the update record and the write: the logged image, the image on disk
+     * and the next before image are then all the same.
      * @param pid an ID indicating the page to flush
      */
     private synchronized  void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
+        Stripe stripe = stripeOf(pid);
+        stripe.lock.lock();
+        try {
+            Page p = this.pool.get(pid);
+            if (p == null) {
+                return;
+            }
+
+            synchronized (p) {
+                TransactionId dirtier = p.isDirty();
+                if (dirtier != null) {
+                    // write ahead: the update record must be on disk before the page
+                    Database.getLogFile().logWrite(dirtier, p.getBeforeImage(), p);
+                    Database.getLogFile().force();
+                    Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(p);
+                    Database.getLogFile().pageWritten(pid);
+                    p.markDirty(false, null);
+                    // the next update record of this page starts from here
+                    p.setBeforeImage();
+                }
+            }
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * Start a background thread that writes up to pagesPerRound dirty pages
+     * to disk every periodMillis, replacing any page writer already
+     * running. Pages stay in the pool; they are only made clean.
+     *
+     * @throws IllegalStateException under NO STEAL, where pages of running
+     *   transactions must not reach the disk.
+     */
+    public void startPageWriter(final long periodMillis, final int pagesPerRound) {
+        if (!this.steal) {
+            throw new IllegalStateException("the page writer needs a STEAL buffer pool");
+        }
+        if (periodMillis < 1 || pagesPerRound < 1) {
+            throw new IllegalArgumentException("bad page writer settings");
+        }
+        synchronized (this.pageWriterLock) {
+            stopPageWriter();
+            this.pageWriter = new PageWriter(periodMillis, pagesPerRound);
+        }
+    }
+
+    /**
+     * Stop the background page writer, if it is running, and wait for the
+     * round it may be in the middle of to end.
+     */
+    public void stopPageWriter() {
+        PageWriter w;
+        synchronized (this.pageWriterLock) {
+            w = this.pageWriter;
+            this.pageWriter = null;
+        }
+        if (w != null) {
+            w.stop();
+        }
+    }
+
+    /**
+     * The background page writer. It is told to stop with a flag rather
+     * than interrupted: an interrupt would close the FileChannel of the
+     * table or log segment it may be writing to, for good.
+     */
+    private class PageWriter implements Runnable {
+        final long periodMillis;
+        final int pagesPerRound;
+        final Thread thread;
+        private boolean stopped = false; // guarded by this
+
+        PageWriter(long periodMillis, int pagesPerRound) {
+            this.periodMillis = periodMillis;
+            this.pagesPerRound = pagesPerRound;
+            this.thread = new Thread(this, "simpledb-page-writer");
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        public void run() {
+            while (true) {
+                synchronized (this) {
+                    long end = System.currentTimeMillis() + this.periodMillis;
+                    long left;
+                    while (!this.stopped && (left = end - System.currentTimeMillis()) > 0) {
+                        try {
+                            wait(left);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (this.stopped) {
+                        return;
+                    }
+                }
+                try {
+                    writeDirtyPages(this.pagesPerRound);
+                } catch (IOException e) {
+                    // the next round tries again
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        void stop() {
+            synchronized (this) {
+                this.stopped = true;
+                notifyAll();
+            }
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    this.thread.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** @return the number of pages written by the background page writer. */
+    public long getBackgroundWrites() {
+        return this.backgroundWrites.get();
+    }
+
+    /**
+     * Writes up to max dirty pages to disk without evicting them, taking
+     * them in the order the eviction policy of each stripe would.
+     *
+     * @return the number of pages written
+     */
+    int writeDirtyPages(int max) throws IOException {
+        int written = 0;
+        int start = this.nextWriterStripe.getAndIncrement();
+        for (int i = 0; i < this.stripes.length && written < max; i++) {
+            Stripe stripe = this.stripes[(start + i) & (this.stripes.length - 1)];
+            ArrayList<PageId> dirty = new ArrayList<PageId>();
+            stripe.lock.lock();
+            try {
+                stripe.drainHits();
+                Iterator<PageId> candidates = stripe.policy.evictionCandidates();
+                while (candidates.hasNext() && written + dirty.size() < max) {
+                    PageId pid = candidates.next();
+                    Page p = this.pool.get(pid);
+                    if (p != null && p.isDirty() != null) {
+                        dirty.add(pid);
+                    }
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+            // flushPage takes the monitor before the stripe lock
+            for (PageId pid : dirty) {
+                this.flushPage(pid);
+                written++;
+            }
+        }
+        this.backgroundWrites.addAndGet(written);
+        return written;
     }
 
     /** Write all pages of the specified transaction to disk.
@@ -202,15 +860,72 @@ public class BufferPool {
     public synchronized  void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        for (Page p : this.pool.values()) {
+            TransactionId dirtier = p.isDirty();
+            if (dirtier != null && dirtier.equals(tid)) {
+                this.flushPage(p.getId());
+            }
+        }
     }
 
     /**
      * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Stripes are tried in turn, starting at a rotating position, and the
+     * victim within a stripe is chosen by its eviction policy. Clean pages
+     * are always preferred. In STEAL mode, if no clean page can be found,
+     * the first dirty candidate is flushed so that a later call can evict it.
+     *
+     * @throws DbException if every resident page is dirty under NO STEAL.
      */
-    private synchronized  void evictPage() throws DbException {
+    private void evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
+        int start = this.nextVictimStripe.getAndIncrement();
+        for (int i = 0; i < this.stripes.length; i++) {
+            Stripe stripe = this.stripes[(start + i) & (this.stripes.length - 1)];
+            stripe.lock.lock();
+            try {
+                stripe.drainHits();
+                PageId victim;
+                // a victim dirtied meanwhile is skipped by the next pick
+                while ((victim = stripe.pickVictim(false)) != null) {
+                    if (stripe.removeIfClean(victim)) {
+                        return;
+                    }
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+
+        if (this.used.get() < this.numPages) {
+            // someone else freed a slot meanwhile
+            return;
+        }
+
+        if (this.steal) {
+            for (int i = 0; i < this.stripes.length; i++) {
+                Stripe stripe = this.stripes[(start + i) & (this.stripes.length - 1)];
+                PageId victim;
+                stripe.lock.lock();
+                try {
+                    victim = stripe.pickVictim(true);
+                } finally {
+                    stripe.lock.unlock();
+                }
+                if (victim != null) {
+                    try {
+                        // flushPage takes the monitor before the stripe lock
+                        this.flushPage(victim);
+                    } catch (IOException e) {
+                        throw new DbException("failed to flush page " + victim + " before eviction: " + e.getMessage());
+                    }
+                    return;
+                }
+            }
+        }
+
+        throw new DbException("cannot evict: all " + this.pool.size() + " pages in the buffer pool are dirty");
     }
 
 }
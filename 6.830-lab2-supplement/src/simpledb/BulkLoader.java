@@ -0,0 +1,232 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * BulkLoader builds a heap file straight from a stream of tuples. Pages are
+ * packed in memory in the format of HeapPage and written out in large
+ * sequential writes, without going through the buffer pool, so none of the
+ * locking, dirty page tracking and logging of BufferPool.insertTuple is paid
+ * for each tuple.
+ * <p>
+ * The file is replaced, not appended to, and the loaded table is registered
+ * in the Catalog. A load is not transactional: the table must not be in use
+ * while it is being loaded.
+ *
+ * @see HeapFileEncoder
+ */
+public class BulkLoader {
+
+    /** Number of pages gathered in memory before each write to the file. */
+    public static final int WRITE_PAGES = 64;
+
+    /**
+     * Load a table from an iterator of tuples.
+     *
+     * @param tuples the tuples to load, all with TupleDesc td
+     * @param outFile the heap file to create
+     * @param td the schema of the table
+     * @param name the name to register the table under
+     * @param pkeyField the primary key of the table, or ""
+     * @return the loaded table
+     * @throws DbException if a tuple does not match td
+     */
+    public static HeapFile load(Iterator<Tuple> tuples, File outFile, TupleDesc td,
+            String name, String pkeyField) throws IOException, DbException {
+        PageWriter writer = new PageWriter(outFile, td);
+        try {
+            while (tuples.hasNext()) {
+                Tuple t = tuples.next();
+                if (!td.equals(t.getTupleDesc())) {
+                    throw new DbException("tupledesc of the tuple does not match " + outFile);
+                }
+                writer.add(t);
+            }
+            writer.finish();
+        } finally {
+            writer.close();
+        }
+        return register(writer, outFile, td, name, pkeyField);
+    }
+
+    /**
+     * Load a table from a text file with one tuple per line and the fields
+     * of each tuple separated by fieldSeparator, as read by HeapFileEncoder.
+     * Empty lines are skipped, and strings longer than Type.STRING_LEN are
+     * truncated.
+     *
+     * @param inFile the text file to read
+     * @param fieldSeparator the character between two fields of a line
+     * @param outFile the heap file to create
+     * @param td the schema of the table
+     * @param name the name to register the table under
+     * @param pkeyField the primary key of the table, or ""
+     * @return the loaded table
+     * @throws IOException if a file cannot be read or written, or a line of
+     *   the input is malformed
+     */
+    public static HeapFile loadText(File inFile, char fieldSeparator, File outFile,
+            TupleDesc td, String name, String pkeyField) throws IOException {
+        BufferedReader br = new BufferedReader(new FileReader(inFile), 1 << 20);
+        PageWriter writer = new PageWriter(outFile, td);
+        try {
+            Tuple t = new Tuple(td);
+            int n = td.numFields();
+            int lineNo = 0;
+            String line;
+            while ((line = br.readLine()) != null) {
+                lineNo++;
+                if (line.trim().length() == 0)
+                    continue;
+
+                int start = 0;
+                for (int i = 0; i < n; i++) {
+                    int end = line.indexOf(fieldSeparator, start);
+                    if ((end < 0) != (i == n - 1)) {
+                        throw new IOException(inFile + ":" + lineNo + ": expected " + n + " fields");
+                    }
+                    String s = line.substring(start, end < 0 ? line.length() : end).trim();
+                    if (td.getFieldType(i) == Type.INT_TYPE) {
+                        try {
+                            t.setInt(i, Integer.parseInt(s));
+                        } catch (NumberFormatException e) {
+                            throw new IOException(inFile + ":" + lineNo + ": bad integer " + s);
+                        }
+                    } else {
+                        t.setField(i, new StringField(s, Type.STRING_LEN));
+                    }
+                    start = end + 1;
+                }
+                writer.add(t);
+            }
+            writer.finish();
+        } finally {
+            writer.close();
+            br.close();
+        }
+        return register(writer, outFile, td, name, pkeyField);
+    }
+
+    private static HeapFile register(PageWriter writer, File outFile, TupleDesc td,
+            String name, String pkeyField) throws IOException {
+        Catalog catalog = Database.getCatalog();
+        File file = outFile.getAbsoluteFile();
+        DbFile old = null;
+        int id;
+        try {
+            // a table loaded again keeps its id, whatever it was given
+            id = catalog.getTableId(name);
+            old = catalog.getDatabaseFile(id);
+        } catch (NoSuchElementException e) {
+            // a new name: the hash of the file name, or the next free id, as
+            // Catalog.loadSchema does, unless a table already uses the file
+            id = file.hashCode();
+            DbFile other;
+            while ((other = catalog.getDatabaseFile(id)) != null) {
+                if (other instanceof HeapFile && file.equals(((HeapFile)other).getFile().getAbsoluteFile())) {
+                    old = other;
+                    break;
+                }
+                id++;
+            }
+        }
+        HeapFile hf = new HeapFile(outFile, td, id, writer.freeSpace.size());
+
+        // pages of an earlier table of the same name or file are stale now
+        boolean replaced = old != null;
+        if (old instanceof HeapFile) {
+            // as far as it was ever read: opening it now would count the
+            // pages of the new file
+            for (int i = 0; i < ((HeapFile)old).numPages(); i++)
+                Database.getBufferPool().discardPage(new HeapPageId(id, i));
+            ((HeapFile)old).close();
+        }
+
+        FileOutputStream fsm = new FileOutputStream(hf.getFreeSpaceFile());
+        try {
+            fsm.write(writer.freeSpace.toByteArray());
+        } finally {
+            fsm.close();
+        }
+
+        // the LSNs of the pages replaced mean nothing for the new ones
+        hf.getLsnFile().delete();
+
+        catalog.addTable(hf, name, pkeyField);
+
+        // logged updates of the earlier table must never be redone onto the
+        // new pages: forget its dirty pages, and checkpoint past its records
+        if (replaced) {
+            Database.getLogFile().tableReplaced(hf.getId());
+            Database.getLogFile().logCheckpoint();
+        }
+        return hf;
+    }
+
+    /**
+     * Packs tuples into page images, and writes them to a file WRITE_PAGES
+     * at a time.
+     */
+    private static class PageWriter {
+        final TupleDesc td;
+        final int slots;
+        final int headerSize;
+        final int tupleSize;
+        final FileChannel ch;
+        final ByteBuffer out;
+        final byte[] page;
+        /* one byte for each page written, as in the .fsm file of HeapFile */
+        final ByteArrayOutputStream freeSpace = new ByteArrayOutputStream();
+        int used = 0;
+
+        PageWriter(File outFile, TupleDesc td) throws IOException {
+            int pageSize = BufferPool.getPageSize();
+            this.td = td;
+            this.slots = HeapPage.slotsPerPage(td);
+            this.headerSize = (slots + 7) / 8;
+            this.tupleSize = td.getSize();
+            this.page = new byte[pageSize];
+            this.out = ByteBuffer.allocateDirect(pageSize * WRITE_PAGES);
+            this.ch = new FileOutputStream(outFile).getChannel();
+        }
+
+        void add(Tuple t) throws IOException {
+            HeapPage.writeTuple(td, t, page, headerSize + used * tupleSize);
+            page[used >> 3] |= (byte)(1 << (used & 7));
+            if (++used == slots)
+                endPage();
+        }
+
+        void endPage() throws IOException {
+            out.put(page);
+            Arrays.fill(page, (byte)0);
+            freeSpace.write(used < slots ? 1 : 0);
+            used = 0;
+            if (!out.hasRemaining())
+                drain();
+        }
+
+        void drain() throws IOException {
+            out.flip();
+            while (out.hasRemaining())
+                ch.write(out);
+            out.clear();
+        }
+
+        void finish() throws IOException {
+            if (used > 0)
+                endPage();
+            drain();
+            ch.force(true);
+        }
+
+        void close() throws IOException {
+            ch.close();
+        }
+    }
+}
@@ -1,7 +1,13 @@
 package simpledb;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
@@ -14,19 +20,130 @@ import java.util.concurrent.ConcurrentHashMap;
  * user program before it can be used -- eventually, this should be converted
  * to a catalog that reads a catalog table from disk.
  * 
+ * <p>
+ * Lookups go through a snapshot of all tables, indexed both by id and by
+ * name. Adding a table publishes a new snapshot, so lookups never lock
+ * and, by id, never allocate; the snapshot grows in place unless a table
+ * is replaced, so adding n tables one at a time costs O(n) overall.
+ * <p>
+ * The catalog can be saved to and loaded from a compact binary file (see
+ * {@link #saveCatalog}), which records each table's id, schema, primary key
+ * and page count, so that opening it neither parses text nor touches the
+ * table files.
+ *
  * @Threadsafe
  */
 public class Catalog {
-    ConcurrentHashMap<String, DbFile> tables;
-    ConcurrentHashMap<DbFile, String> pkey;
+
+    /** A table as registered in the catalog. */
+    private static final class Table {
+        final int id;
+        final DbFile file;
+        final String name;
+        final String pkey;
+
+        Table(DbFile file, String name, String pkey) {
+            this.id   = file.getId();
+            this.file = file;
+            this.name = name;
+            this.pkey = pkey;
+        }
+    }
+
+    /**
+     * A snapshot of all tables. The id index is an open-addressing hash
+     * table keyed on int, so looking a table up by id does not box the id.
+     * <p>
+     * The arrays are sized for twice the tables they were built with. A
+     * table that replaces none is added in place, into the slots past the
+     * ones the snapshot covers, and published as a new snapshot sharing
+     * the arrays; only a full index or a replacement rebuilds it, so adding
+     * tables one at a time costs amortized constant time each. The slots
+     * written in place are all empty until then, and the lookup structures
+     * of an older snapshot may already show the newer tables.
+     */
+    private static final class TableIndex {
+        /* the tables of this snapshot are the first count */
+        final Table[] all;
+        final int count;
+        final Table[] byId;
+        final ConcurrentHashMap<String, Table> byName;
+        private final Integer[] idArray;
+        final List<Integer> ids;
+
+        TableIndex(List<Table> tables) {
+            int capacity = Math.max(4, tables.size() * 2);
+            this.all = new Table[capacity];
+            this.count = tables.size();
+            this.byId = new Table[Integer.highestOneBit(capacity) * 4];
+            this.byName = new ConcurrentHashMap<String, Table>(capacity);
+            this.idArray = new Integer[capacity];
+            for (int i = 0; i < count; i++)
+                put(i, tables.get(i));
+            this.ids = Collections.unmodifiableList(Arrays.asList(idArray).subList(0, count));
+        }
+
+        private TableIndex(TableIndex shared, int count) {
+            this.all = shared.all;
+            this.count = count;
+            this.byId = shared.byId;
+            this.byName = shared.byName;
+            this.idArray = shared.idArray;
+            this.ids = Collections.unmodifiableList(Arrays.asList(idArray).subList(0, count));
+        }
+
+        private void put(int i, Table t) {
+            all[i] = t;
+            idArray[i] = t.id;
+            int slot = slotOf(t.id);
+            while (byId[slot] != null)
+                slot = (slot + 1) & (byId.length - 1);
+            byId[slot] = t;
+            byName.put(t.name, t);
+        }
+
+        /**
+         * Returns a snapshot with one more table, which must not have the
+         * id or name of a table already in, or null if the arrays are full.
+         * Requires the monitor of the Catalog.
+         */
+        TableIndex plus(Table t) {
+            if (count == all.length)
+                return null;
+            put(count, t);
+            return new TableIndex(this, count + 1);
+        }
+
+        private int slotOf(int id) {
+            int h = id * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & (byId.length - 1);
+        }
+
+        Table get(int id) {
+            int slot = slotOf(id);
+            Table t;
+            while ((t = byId[slot]) != null) {
+                if (t.id == id)
+                    return t;
+                slot = (slot + 1) & (byId.length - 1);
+            }
+            return null;
+        }
+    }
+
+    private volatile TableIndex index;
+
+    /* "SDBC", the first four bytes of a binary catalog file */
+    static final int CATALOG_MAGIC = 0x53444243;
+    static final int CATALOG_VERSION = 1;
+
     /**
      * Constructor.
      * Creates a new, empty catalog.
      */
     public Catalog() {
         // some code goes here
-        this.tables = new ConcurrentHashMap<String, DbFile>();
-        this.pkey   = new ConcurrentHashMap<DbFile, String>();
+        this.index = new TableIndex(Collections.<Table>emptyList());
     }
 
     /**
@@ -40,10 +157,7 @@ public class Catalog {
      */
     public void addTable(DbFile file, String name, String pkeyField) {
         // some code goes here
-        this.tables.putIfAbsent(name, file);
-        if (!(pkeyField == null || pkeyField == "")){
-            this.pkey.putIfAbsent(file, pkeyField);
-        }
+        addTables(Collections.singletonList(new Table(file, name, pkeyField)));
     }
 
     public void addTable(DbFile file, String name) {
@@ -61,18 +175,67 @@ public class Catalog {
         addTable(file, (UUID.randomUUID()).toString());
     }
 
+    /**
+     * Adds several tables at once. A table replaces any table already
+     * registered with the same id or name; the index is then rebuilt once,
+     * and otherwise the tables are added to it in place.
+     */
+    private synchronized void addTables(List<Table> added) {
+        if (added.isEmpty())
+            return;
+        HashMap<Integer, Table> addedIds = new HashMap<Integer, Table>();
+        HashMap<String, Table> addedNames = new HashMap<String, Table>();
+        boolean replacing = false;
+        for (Table t : added) {
+            if (t.name == null)
+                throw new IllegalArgumentException("table name may not be null");
+            if (addedIds.put(t.id, t) != null || this.index.get(t.id) != null)
+                replacing = true;
+            if (addedNames.put(t.name, t) != null || this.index.byName.containsKey(t.name))
+                replacing = true;
+        }
+
+        TableIndex index = this.index;
+        if (!replacing) {
+            for (Table t : added) {
+                index = index.plus(t);
+                if (index == null)
+                    break;
+            }
+            if (index != null) {
+                this.index = index;
+                return;
+            }
+            // full: the tables added so far are in it, and are rebuilt
+            // below with the others
+        }
+
+        index = this.index;
+        ArrayList<Table> tables = new ArrayList<Table>(index.count + added.size());
+        for (int i = 0; i < index.count; i++) {
+            Table t = index.all[i];
+            if (!addedIds.containsKey(t.id) && !addedNames.containsKey(t.name))
+                tables.add(t);
+        }
+        for (Table t : added) {
+            // the last table with a given id or name wins
+            if (addedIds.get(t.id) == t && addedNames.get(t.name) == t)
+                tables.add(t);
+        }
+        this.index = new TableIndex(tables);
+    }
+
     /**
      * Return the id of the table with a specified name,
      * @throws NoSuchElementException if the table doesn't exist
      */
     public int getTableId(String name) throws NoSuchElementException {
         // some code goes here
-        if (name == null || !(this.tables.containsKey(name))) {
+        Table t = (name == null) ? null : this.index.byName.get(name);
+        if (t == null) {
             throw new NoSuchElementException();
         }
-        else{
-            return this.tables.get(name).getId();
-        }
+        return t.id;
     }
 
     /**
@@ -83,16 +246,11 @@ public class Catalog {
      */
     public TupleDesc getTupleDesc(int tableid) throws NoSuchElementException {
         // some code goes here
-        Object values[] = this.tables.values().toArray();
-
-        for(int i = 0; i < values.length; i++){
-            DbFile obj = (DbFile)values[i];
-            if (obj.getId() == tableid){
-                return obj.getTupleDesc();
-            }
+        Table t = this.index.get(tableid);
+        if (t == null) {
+            throw new NoSuchElementException();
         }
-
-        throw new NoSuchElementException();
+        return t.file.getTupleDesc();
     }
 
     /**
@@ -103,91 +261,170 @@ public class Catalog {
      */
     public DbFile getDatabaseFile(int tableid) throws NoSuchElementException {
         // some code goes here
-        Object values[] = this.tables.values().toArray();
-
-        for(int i = 0; i < values.length; i++){
-            DbFile obj = (DbFile)values[i];
-            if (obj.getId() == tableid){
-                return obj;
-            }
-        }
-        return null;
+        Table t = this.index.get(tableid);
+        return (t == null) ? null : t.file;
     }
 
     public String getPrimaryKey(int tableid) {
         // some code goes here
-        DbFile databaseFile = this.getDatabaseFile(tableid);
-
-        if(this.pkey.containsKey(databaseFile)){
-            return this.pkey.get(databaseFile);
-        }
-
-        return null;
-    }
-
-    private class Iter implements Iterator<Integer>{
-        int cursor  = 0;
-        int lastRet = -1;
-
-        Object values[] = Catalog.this.tables.values().toArray();
-
-        public boolean hasNext(){
-            return cursor != Catalog.this.tables.size();
-        }
-
-        public Integer next(){
-            if(! hasNext()){
-                throw new NoSuchElementException();
-            }
-
-           int i = cursor;
-            Object[] obj = values;
-            cursor += 1;
-            lastRet =  i;
-            return ((DbFile) obj[lastRet]).getId();
+        Table t = this.index.get(tableid);
+        if (t == null || t.pkey == null || t.pkey.length() == 0) {
+            return null;
         }
+        return t.pkey;
     }
 
     public Iterator<Integer> tableIdIterator() {
         // some code goes here
-        return new Iter();
+        return this.index.ids.iterator();
     }
 
     public String getTableName(int id) {
         // some code goes here
-        DbFile table = this.getDatabaseFile(id);
-
-        if(table == null){
-            return null;
+        Table t = this.index.get(id);
+        return (t == null) ? null : t.name;
+    }
+    
+    /** Delete all tables from the catalog */
+    public synchronized void clear() {
+        // some code goes here
+        this.index = new TableIndex(Collections.<Table>emptyList());
+    }
+    
+    /**
+     * Writes the HeapFile tables of this catalog to a binary catalog file,
+     * which {@link #loadSchema} can read back. Table files are recorded
+     * relative to the folder of the catalog file when they are inside it.
+     * Tables stored in other kinds of DbFile are left out.
+     *
+     * @param catalogFile the file to write
+     */
+    public void saveCatalog(String catalogFile) throws IOException {
+        File base = new File(catalogFile).getAbsoluteFile().getParentFile();
+        TableIndex index = this.index;
+        ArrayList<Table> tables = new ArrayList<Table>();
+        for (int i = 0; i < index.count; i++) {
+            if (index.all[i].file instanceof HeapFile)
+                tables.add(index.all[i]);
         }
 
-        Enumeration<String> keys = this.tables.keys();
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(catalogFile)));
+        try {
+            dos.writeInt(CATALOG_MAGIC);
+            dos.writeInt(CATALOG_VERSION);
+            dos.writeInt(tables.size());
+            for (Table t : tables) {
+                HeapFile hf = (HeapFile) t.file;
+                dos.writeInt(t.id);
+                dos.writeUTF(t.name);
+                dos.writeUTF(t.pkey == null ? "" : t.pkey);
+                dos.writeBoolean(hf instanceof MappedHeapFile);
+                File f = hf.getFile().getAbsoluteFile();
+                dos.writeUTF(base.equals(f.getParentFile()) ? f.getName() : f.getPath());
+                dos.writeInt(hf.numPages());
+                TupleDesc td = hf.getTupleDesc();
+                dos.writeInt(td.numFields());
+                for (int i = 0; i < td.numFields(); i++) {
+                    dos.writeByte(td.getFieldType(i).ordinal());
+                    String name = td.getFieldName(i);
+                    dos.writeBoolean(name != null);
+                    if (name != null)
+                        dos.writeUTF(name);
+                }
+            }
+        } finally {
+            dos.close();
+        }
+    }
 
-        String name = null;
+    /**
+     * Reads a binary catalog file written by {@link #saveCatalog} and adds
+     * its tables, with their recorded ids.
+     */
+    private void loadCatalog(String catalogFile) throws IOException {
+        File base = new File(catalogFile).getAbsoluteFile().getParentFile();
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(catalogFile)));
+        try {
+            if (dis.readInt() != CATALOG_MAGIC)
+                throw new IOException("not a catalog file: " + catalogFile);
+            int version = dis.readInt();
+            if (version != CATALOG_VERSION)
+                throw new IOException("unsupported catalog version " + version);
 
-        for(; keys.hasMoreElements();){
-            name = keys.nextElement();
-            if(this.tables.get(name) == table){
-                return name;
+            int count = dis.readInt();
+            ArrayList<Table> tables = new ArrayList<Table>(count);
+            for (int n = 0; n < count; n++) {
+                int id = dis.readInt();
+                String name = dis.readUTF();
+                String pkey = dis.readUTF();
+                boolean mmap = dis.readBoolean();
+                File f = new File(dis.readUTF());
+                if (!f.isAbsolute())
+                    f = new File(base, f.getPath());
+                int numPages = dis.readInt();
+                Type[] types = new Type[dis.readInt()];
+                String[] names = new String[types.length];
+                for (int i = 0; i < types.length; i++) {
+                    types[i] = Type.values()[dis.readByte()];
+                    names[i] = dis.readBoolean() ? dis.readUTF() : null;
+                }
+                TupleDesc td = new TupleDesc(types, names);
+                HeapFile hf = mmap ? new MappedHeapFile(f, td, id, numPages)
+                        : new HeapFile(f, td, id, numPages);
+                tables.add(new Table(hf, name, pkey));
             }
+            addTables(tables);
+        } finally {
+            dis.close();
         }
-        return null;
     }
-    
-    /** Delete all tables from the catalog */
-    public void clear() {
-        // some code goes here
-        this.tables.clear();
-        this.pkey.clear();
+
+    private static boolean isBinaryCatalog(File f) throws IOException {
+        if (f.length() < 4)
+            return false;
+        DataInputStream dis = new DataInputStream(new FileInputStream(f));
+        try {
+            return dis.readInt() == CATALOG_MAGIC;
+        } finally {
+            dis.close();
+        }
     }
-    
+
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each line has the form <code>name (field type [pk], ...) [mmap]</code>;
+     * tables annotated with <code>mmap</code> are opened as a {@link MappedHeapFile}.
+     * A binary catalog written by {@link #saveCatalog} is recognized and
+     * loaded as well.
+     * <p>
+     * Tables from a text schema get the hash of their file name as id, unless
+     * another table already has that id; they then get the next free one.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
+        try {
+            if (isBinaryCatalog(new File(catalogFile))) {
+                loadCatalog(catalogFile);
+                return;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(0);
+        }
+
         String line = "";
         String baseFolder=new File(new File(catalogFile).getAbsolutePath()).getParent();
+        ArrayList<Table> tables = new ArrayList<Table>();
+        // the file behind each id in use; a file keeps its id when reloaded
+        HashMap<Integer, File> usedIds = new HashMap<Integer, File>();
+        TableIndex index = this.index;
+        for (int i = 0; i < index.count; i++) {
+            Table t = index.all[i];
+            usedIds.put(t.id, t.file instanceof HeapFile
+                    ? ((HeapFile) t.file).getFile().getAbsoluteFile() : null);
+        }
         try {
             BufferedReader br = new BufferedReader(new FileReader(new File(catalogFile)));
             
@@ -220,13 +457,32 @@ public class Catalog {
                         }
                     }
                 }
+                //an optional storage annotation may follow the field list
+                String storage = line.substring(line.indexOf(")") + 1).trim();
+                boolean mmap = false;
+                if (storage.toLowerCase().equals("mmap"))
+                    mmap = true;
+                else if (storage.length() > 0) {
+                    System.out.println("Unknown annotation " + storage);
+                    System.exit(0);
+                }
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
-                addTable(tabHf,name,primaryKey);
+                File tabFile = new File(baseFolder+"/"+name + ".dat");
+                File absFile = tabFile.getAbsoluteFile();
+                int id = absFile.hashCode();
+                while (usedIds.containsKey(id) && !absFile.equals(usedIds.get(id)))
+                    id++;
+                usedIds.put(id, absFile);
+                int numPages = (int)(tabFile.length() / BufferPool.getPageSize());
+                HeapFile tabHf = mmap ? new MappedHeapFile(tabFile, t, id, numPages)
+                        : new HeapFile(tabFile, t, id, numPages);
+                tables.add(new Table(tabHf,name,primaryKey));
                 System.out.println("Added table : " + name + " with schema " + t);
             }
+            br.close();
+            addTables(tables);
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(0);
@@ -0,0 +1,108 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * CLOCK (second chance) approximation of LRU. Resident pages sit in a ring
+ * of frames, each with a reference bit that is set whenever the page is
+ * used. The clock hand sweeps the ring; a page whose bit is set has the bit
+ * cleared and is passed over, a page whose bit is clear is proposed for
+ * eviction.
+ */
+public class ClockEvictionPolicy implements EvictionPolicy {
+
+    private PageId[] frames;
+    private boolean[] referenced;
+    private final HashMap<PageId, Integer> frameOf = new HashMap<PageId, Integer>();
+    private final ArrayDeque<Integer> freeFrames = new ArrayDeque<Integer>();
+    private int hand = 0;
+
+    /**
+     * @param numPages the number of frames in the buffer pool
+     */
+    public ClockEvictionPolicy(int numPages) {
+        frames = new PageId[Math.max(numPages, 1)];
+        referenced = new boolean[frames.length];
+        for (int i = 0; i < frames.length; i++) {
+            freeFrames.add(i);
+        }
+    }
+
+    public void pageAdded(PageId pid) {
+        if (frameOf.containsKey(pid)) {
+            pageAccessed(pid);
+            return;
+        }
+        if (freeFrames.isEmpty()) {
+            grow();
+        }
+        int frame = freeFrames.poll();
+        frames[frame] = pid;
+        referenced[frame] = true;
+        frameOf.put(pid, frame);
+    }
+
+    public void pageAccessed(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        if (frame != null) {
+            referenced[frame] = true;
+        }
+    }
+
+    public void pageRemoved(PageId pid) {
+        Integer frame = frameOf.remove(pid);
+        if (frame != null) {
+            frames[frame] = null;
+            referenced[frame] = false;
+            freeFrames.add(frame);
+        }
+    }
+
+    public Iterator<PageId> evictionCandidates() {
+        return new Iterator<PageId>() {
+            // two full turns: the first may only clear reference bits
+            int steps = 2 * frames.length;
+            PageId next = null;
+
+            public boolean hasNext() {
+                while (next == null && steps > 0) {
+                    int frame = hand;
+                    hand = (hand + 1) % frames.length;
+                    steps--;
+                    if (frames[frame] == null) {
+                        continue;
+                    }
+                    if (referenced[frame]) {
+                        referenced[frame] = false;
+                    } else {
+                        next = frames[frame];
+                    }
+                }
+                return next != null;
+            }
+
+            public PageId next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                PageId result = next;
+                next = null;
+                return result;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /* only needed if the pool briefly holds more pages than it was sized for */
+    private void grow() {
+        int old = frames.length;
+        frames = Arrays.copyOf(frames, old * 2);
+        referenced = Arrays.copyOf(referenced, old * 2);
+        for (int i = old; i < frames.length; i++) {
+            freeFrames.add(i);
+        }
+    }
+}
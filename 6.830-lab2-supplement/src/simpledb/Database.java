@@ -21,9 +21,34 @@ public class Database {
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
 
+    /**
+     * System property naming the buffer pool eviction policy ("lru", "clock"
+     * or "2q"), e.g. -Dsimpledb.EvictionPolicy=clock
+     */
+    public final static String EVICTION_POLICY_PROPERTY = "simpledb.EvictionPolicy";
+
+    /**
+     * System property that, when set to true, lets the buffer pool flush and
+     * evict dirty pages (STEAL) instead of refusing to (NO STEAL).
+     */
+    public final static String STEAL_PROPERTY = "simpledb.Steal";
+
+    /**
+     * System property that, along with simpledb.Steal, starts the background
+     * page writer of the buffer pool, writing dirty pages every so many
+     * milliseconds, e.g. -Dsimpledb.PageWriterMillis=100
+     */
+    public final static String PAGE_WRITER_PROPERTY = "simpledb.PageWriterMillis";
+
+    /**
+     * System property setting how many milliseconds a transaction waits for
+     * a page lock before it is aborted, e.g. -Dsimpledb.LockTimeoutMillis=500
+     */
+    public final static String LOCK_TIMEOUT_PROPERTY = "simpledb.LockTimeoutMillis";
+
     private Database() {
         _catalog = new Catalog();
-        _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
+        _bufferpool = newBufferPool(BufferPool.DEFAULT_PAGES);
         LogFile tmp = null;
         try {
             tmp = new LogFile(new File(LOGFILENAME));
@@ -35,6 +60,20 @@ public class Database {
         // startControllerThread();
     }
 
+    /** Create a buffer pool configured from the system properties */
+    private static BufferPool newBufferPool(int pages) {
+        String policy = System.getProperty(EVICTION_POLICY_PROPERTY,
+                BufferPool.DEFAULT_EVICTION_POLICY);
+        boolean steal = Boolean.getBoolean(STEAL_PROPERTY);
+        BufferPool bp = new BufferPool(pages, policy, steal);
+        bp.getLockManager().setTimeout(Long.getLong(LOCK_TIMEOUT_PROPERTY,
+                LockManager.DEFAULT_TIMEOUT_MILLIS));
+        long writerPeriod = Long.getLong(PAGE_WRITER_PROPERTY, 0);
+        if (steal && writerPeriod > 0)
+            bp.startPageWriter(writerPeriod, BufferPool.DEFAULT_PAGE_WRITER_PAGES);
+        return bp;
+    }
+
     /** Return the log file of the static Database instance */
     public static LogFile getLogFile() {
         return _instance.get()._logfile;
@@ -59,7 +98,8 @@ public class Database {
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            _instance.get()._bufferpool.stopPageWriter();
+            bufferPoolF.set(_instance.get(), newBufferPool(pages));
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -75,6 +115,7 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
+        _instance.get()._bufferpool.stopPageWriter();
         _instance.set(new Database());
     }
 
@@ -0,0 +1,52 @@
+package simpledb;
+
+import java.util.Iterator;
+
+/**
+ * EvictionPolicy decides which page the BufferPool gives up when it is full.
+ * The BufferPool reports every page that enters, is hit in, or leaves the
+ * pool; the policy keeps whatever bookkeeping it needs and, when asked,
+ * proposes resident pages in the order they should be evicted.
+ * <p>
+ * Implementations are not thread safe. BufferPool splits its pages into
+ * stripes, each with a policy instance of its own, and only calls a
+ * policy while holding the ReentrantLock of its stripe; a policy never
+ * sees pages of other stripes.
+ *
+ * @see BufferPool
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Called after a page has been read from disk into the buffer pool.
+     *
+     * @param pid the id of the new resident page
+     */
+    public void pageAdded(PageId pid);
+
+    /**
+     * Called when a resident page is requested again.
+     *
+     * @param pid the id of the requested page
+     */
+    public void pageAccessed(PageId pid);
+
+    /**
+     * Called after a page has left the buffer pool, either because it was
+     * evicted or because it was discarded.
+     *
+     * @param pid the id of the page that is no longer resident
+     */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Returns the resident pages in the order in which they should be
+     * considered for eviction, best victim first. The BufferPool may skip
+     * candidates it is not allowed to evict (e.g. dirty pages under
+     * NO STEAL), and stops iterating as soon as it has found a victim, which
+     * it then reports through {@link #pageRemoved}. Iterating may update the
+     * policy's state (e.g. clear CLOCK reference bits), but the returned
+     * iterator does not support remove().
+     */
+    public Iterator<PageId> evictionCandidates();
+}
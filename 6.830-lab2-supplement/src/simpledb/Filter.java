@@ -6,6 +6,9 @@ import java.util.*;
  */
 public class Filter extends Operator {
 
+    private final Predicate p;
+    private DbIterator child;
+
     /**
      * Constructor accepts a predicate to apply and a child
      * operator to read tuples to filter from.
@@ -15,24 +18,35 @@ public class Filter extends Operator {
      */
     public Filter(Predicate p, DbIterator child) {
         // some code goes here
+        this.p     = p;
+        this.child = child;
+    }
+
+    public Predicate getPredicate() {
+        return this.p;
     }
 
     public TupleDesc getTupleDesc() {
         // some code goes here
-        return null;
+        return this.child.getTupleDesc();
     }
 
     public void open()
         throws DbException, NoSuchElementException, TransactionAbortedException {
         // some code goes here
+        this.child.open();
     }
 
     public void close() {
         // some code goes here
+        super.close();
+        this.child.close();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
+        discardBuffered();
+        this.child.rewind();
     }
 
     /**
@@ -47,6 +61,22 @@ public class Filter extends Operator {
     protected Tuple fetchNext()
         throws NoSuchElementException, TransactionAbortedException, DbException {
         // some code goes here
+        return nextFromBatch();
+    }
+
+    /**
+     * Operator.fetchNextBatch implementation.
+     * Narrows the selection of each batch from the child operator to the
+     * tuples that pass the predicate, skipping batches where none do.
+     */
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch batch;
+        while ((batch = TupleBatch.fetch(this.child)) != null) {
+            this.p.filter(batch);
+            if (batch.size() > 0) {
+                return batch;
+            }
+        }
         return null;
     }
 }
@@ -2,7 +2,10 @@ package simpledb;
 
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * HeapFile is an implementation of a DbFile that stores a collection of tuples
@@ -18,9 +21,54 @@ public class HeapFile implements DbFile {
 
     private final File f;
     private TupleDesc td;
-    private int pageNum;
-    int curPageNum;
-    private int offset;
+    private final int id;
+    private volatile int pageNum;
+
+    /* Opened lazily on the first page access and kept for the lifetime of
+     * this HeapFile. Positional reads on a FileChannel do not touch the
+     * channel's position, so concurrent readers need no extra locking. */
+    private volatile FileChannel channel;
+
+    /* One page-sized buffer per reading thread; HeapPage parses the bytes
+     * in its constructor and does not keep a reference to them. */
+    private static final ThreadLocal<ByteBuffer> readBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(BufferPool.getPageSize());
+        }
+    };
+
+    /* Free-space map: a bit for each page that may have a free slot. It is
+     * only a hint, checked against the page itself by every insert. It is
+     * loaded lazily from the .fsm file next to this file, which holds one
+     * byte per page and is updated whenever a page is written, or rebuilt
+     * from the pages themselves when that file is missing. */
+    private BitSet freeSpace;
+    /* no page below this one has its bit set */
+    private int freeSpaceHint;
+    private final Object freeSpaceLock = new Object();
+    private RandomAccessFile freeSpaceFile;
+
+    /* Page LSNs: the .lsn file next to this file holds, for each page, the
+     * LSN stamped on it when it was last written (8 bytes per page), for
+     * recovery to tell which logged updates are already on disk. It is only
+     * created once a logged page is written; a missing entry reads as 0.
+     * An LSN is only written there by force(), once the page it belongs to
+     * is on disk: an entry ahead of its page would make recovery skip an
+     * update the page never got, while an entry behind it only makes redo
+     * apply an update again, which leaves the page as it was. Until then it
+     * waits in unforcedLsns. Both are guarded by lsnLock. */
+    private final Object lsnLock = new Object();
+    private RandomAccessFile lsnFile;
+    private HashMap<Integer, Long> unforcedLsns = new HashMap<Integer, Long>();
+
+    /* pages were written since the last force() */
+    private final AtomicBoolean unforced = new AtomicBoolean(false);
+
+    /* bounds, in pages, of the read-ahead window of a scan */
+    private static final int MIN_READ_AHEAD = 2;
+    private static final int MAX_READ_AHEAD = 32;
+
     /**
      * Constructs a heap file backed by the specified file.
      * 
@@ -30,11 +78,71 @@ public class HeapFile implements DbFile {
      */
     public HeapFile(File f, TupleDesc td) {
         // some code goes here
+        this(f, td, f.getAbsoluteFile().hashCode(),
+                (int)(f.length() / BufferPool.getPageSize()));
+    }
+
+    /**
+     * Constructs a heap file whose id and size are already known, e.g. from
+     * a persistent catalog. The file is not touched until it is first
+     * accessed; its actual size then takes precedence over numPages.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param id
+     *            the id of this table
+     * @param numPages
+     *            the number of pages the file is expected to hold
+     */
+    public HeapFile(File f, TupleDesc td, int id, int numPages) {
         this.f          = f;
         this.td         = td;
-        this.pageNum    = (int)this.f.length() / BufferPool.getPageSize();
-        this.offset     = 0;
-        this.curPageNum = 0;
+        this.id         = id;
+        this.pageNum    = numPages;
+    }
+
+    /**
+     * Returns the channel backing this file, opening it on first use.
+     */
+    FileChannel getChannel() throws IOException {
+        FileChannel ch = this.channel;
+        if (ch == null) {
+            synchronized (this) {
+                ch = this.channel;
+                if (ch == null) {
+                    ch = new RandomAccessFile(this.f, "rw").getChannel();
+                    this.pageNum = (int)(ch.size() / BufferPool.getPageSize());
+                    this.channel = ch;
+                }
+            }
+        }
+        return ch;
+    }
+
+    /**
+     * Forces and closes the files of this HeapFile, which must not be used
+     * any more, e.g. once another HeapFile replaces it in the catalog.
+     */
+    void close() throws IOException {
+        force();
+        synchronized (this) {
+            if (this.channel != null) {
+                this.channel.close();
+            }
+        }
+        synchronized (this.freeSpaceLock) {
+            if (this.freeSpaceFile != null) {
+                this.freeSpaceFile.close();
+                this.freeSpaceFile = null;
+            }
+        }
+        synchronized (this.lsnLock) {
+            if (this.lsnFile != null) {
+                this.lsnFile.close();
+                this.lsnFile = null;
+            }
+        }
     }
 
     /**
@@ -48,10 +156,8 @@ public class HeapFile implements DbFile {
     }
 
     /**
-     * Returns an ID uniquely identifying this HeapFile. Implementation note:
-     * you will need to generate this tableid somewhere ensure that each
-     * HeapFile has a "unique id," and that you always return the same value for
-     * a particular HeapFile. We suggest hashing the absolute file name of the
+     * Returns an ID uniquely identifying this HeapFile. Unless it was given
+     * to the constructor, this is the hash of the absolute file name of the
      * file underlying the heapfile, i.e. f.getAbsoluteFile().hashCode().
      * 
      * @return an ID uniquely identifying this HeapFile.
@@ -59,7 +165,7 @@ public class HeapFile implements DbFile {
     public int getId() {
         // some code goes here
         //throw new UnsupportedOperationException("implement this");
-        return f.getAbsoluteFile().hashCode();
+        return this.id;
     }
 
     /**
@@ -76,45 +182,214 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
-        HeapPageId hpid  = (HeapPageId)pid;
-        HeapPage hp = null;
+        HeapPageId hpid = (HeapPageId)pid;
+        int pgNo        = hpid.pageNumber();
+        ByteBuffer buf = readBuffer.get();
+        buf.clear();
+        try {
+            FileChannel ch = getChannel();
+            if (pgNo < 0 || pgNo >= numPages()) {
+                throw new IllegalArgumentException("page " + pgNo + " does not exist in " + this.f);
+            }
+            long position  = (long)pgNo * BufferPool.getPageSize();
+            while (buf.hasRemaining()) {
+                int count = ch.read(buf, position + buf.position());
+                if (count < 0) {
+                    throw new IllegalArgumentException("page " + pgNo + " is truncated in " + this.f);
+                }
+            }
+            return new HeapPage(hpid, buf.array());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        // some code goes here
+        // not necessary for lab1
+        int pgNo = page.getId().pageNumber();
+        if (pgNo < 0) {
+            throw new IllegalArgumentException("bad page number " + pgNo);
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(page.getPageData());
+        FileChannel ch = getChannel();
+        long position  = (long)pgNo * BufferPool.getPageSize();
+        while (buf.hasRemaining()) {
+            ch.write(buf, position + buf.position());
+        }
+        synchronized (this) {
+            this.pageNum = Math.max(this.pageNum, pgNo + 1);
+        }
+
+        if (page instanceof HeapPage) {
+            boolean hasSpace = ((HeapPage)page).getNumEmptySlots() > 0;
+            synchronized (this.freeSpaceLock) {
+                if (this.freeSpaceFile == null) {
+                    this.freeSpaceFile = new RandomAccessFile(getFreeSpaceFile(), "rw");
+                }
+                this.freeSpaceFile.seek(pgNo);
+                this.freeSpaceFile.write(hasSpace ? 1 : 0);
+                if (this.freeSpace != null) {
+                    setHasSpace(pgNo, hasSpace);
+                }
+            }
 
+            // recorded after the write, so that the force which publishes
+            // it also forces the page
+            synchronized (this.lsnLock) {
+                this.unforcedLsns.put(pgNo, ((HeapPage)page).getLsn());
+            }
+        }
+        this.unforced.set(true);
+    }
+
+    /**
+     * Forces the pages written so far to disk, then their LSNs. Pages are
+     * written without being forced; the log only forgets the updates of a
+     * page once a checkpoint has forced it.
+     *
+     * @see LogFile#logCheckpoint
+     */
+    void force() throws IOException {
+        if (!this.unforced.getAndSet(false)) {
+            return;
+        }
+        // the pages behind these LSNs were written before they were recorded
+        HashMap<Integer, Long> lsns;
+        synchronized (this.lsnLock) {
+            lsns = new HashMap<Integer, Long>(this.unforcedLsns);
+        }
         try {
-            InputStream is  = new FileInputStream(this.f);
-            byte[] buf      = new byte[BufferPool.getPageSize()];
-            int count       = 0;
-            int available   = 0;
-            try {
-                is.skip(this.offset);
-
-                available = is.available();
-                if(available > 0) {
-                    try {
-                        count = is.read(buf, 0, Math.min(BufferPool.getPageSize(), available));
-                    }catch (IndexOutOfBoundsException e){
-                        System.out.println(available);
+            FileChannel ch = this.channel;
+            if (ch != null) {
+                ch.force(true);
+            }
+            synchronized (this.lsnLock) {
+                for (Map.Entry<Integer, Long> e : lsns.entrySet()) {
+                    long lsn = e.getValue();
+                    if (this.lsnFile == null && (lsn != 0 || getLsnFile().exists())) {
+                        this.lsnFile = new RandomAccessFile(getLsnFile(), "rw");
+                    }
+                    if (this.lsnFile != null) {
+                        this.lsnFile.seek((long)e.getKey() * 8);
+                        this.lsnFile.writeLong(lsn);
                     }
-                    this.offset += count;
+                }
+                if (this.lsnFile != null) {
+                    this.lsnFile.getFD().sync();
+                }
+                // unless the page was written again meanwhile
+                for (Map.Entry<Integer, Long> e : lsns.entrySet()) {
+                    this.unforcedLsns.remove(e.getKey(), e.getValue());
+                }
+            }
+        } catch (IOException e) {
+            this.unforced.set(true);
+            throw e;
+        }
+    }
 
-                    hp = new HeapPage(hpid, buf);
+    /**
+     * Returns the file holding the page LSNs of this HeapFile.
+     */
+    File getLsnFile() {
+        return new File(this.f.getPath() + ".lsn");
+    }
+
+    /**
+     * Returns the LSN a page was stamped with when it was last written, or 0
+     * if it was never written with one. That write may not be forced yet.
+     *
+     * @see HeapPage#getLsn
+     */
+    long getPageLsn(int pgNo) throws IOException {
+        synchronized (this.lsnLock) {
+            Long unforcedLsn = this.unforcedLsns.get(pgNo);
+            if (unforcedLsn != null) {
+                return unforcedLsn;
+            }
+            if (this.lsnFile == null) {
+                if (!getLsnFile().exists()) {
+                    return 0;
                 }
-                // Close the input stream and return bytes
-                is.close();
+                this.lsnFile = new RandomAccessFile(getLsnFile(), "rw");
+            }
+            long pos = (long)pgNo * 8;
+            if (pos + 8 > this.lsnFile.length()) {
+                return 0;
+            }
+            this.lsnFile.seek(pos);
+            return this.lsnFile.readLong();
+        }
+    }
 
-            } catch (IOException e) {
-                e.printStackTrace();
+    /**
+     * Returns the file holding the free-space map of this HeapFile.
+     */
+    File getFreeSpaceFile() {
+        return new File(this.f.getPath() + ".fsm");
+    }
+
+    /**
+     * Returns the free-space map, loading it on first use. The caller must
+     * hold freeSpaceLock.
+     */
+    private BitSet getFreeSpace() throws IOException {
+        if (this.freeSpace != null) {
+            return this.freeSpace;
+        }
+
+        // the page count given to the constructor may be stale
+        getChannel();
+        int n = numPages();
+        BitSet bits = new BitSet(n);
+        File fsm = getFreeSpaceFile();
+        if (n > 0 && fsm.exists() && fsm.length() >= n) {
+            byte[] entries = new byte[n];
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(fsm)));
+            try {
+                dis.readFully(entries);
+            } finally {
+                dis.close();
+            }
+            for (int i = 0; i < n; i++) {
+                if (entries[i] != 0) {
+                    bits.set(i);
+                }
+            }
+        } else {
+            // no usable map on disk: look at every page once
+            for (int i = 0; i < n; i++) {
+                HeapPage p = (HeapPage)readPage(new HeapPageId(getId(), i));
+                if (p.getNumEmptySlots() > 0) {
+                    bits.set(i);
+                }
             }
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
         }
+        this.freeSpace = bits;
+        this.freeSpaceHint = 0;
+        return bits;
+    }
 
-        return hp;
+    /* the caller must hold freeSpaceLock, with the map loaded */
+    private void setHasSpace(int pgNo, boolean hasSpace) {
+        this.freeSpace.set(pgNo, hasSpace);
+        if (hasSpace && pgNo < this.freeSpaceHint) {
+            this.freeSpaceHint = pgNo;
+        }
     }
 
-    // see DbFile.java for javadocs
-    public void writePage(Page page) throws IOException {
-        // some code goes here
-        // not necessary for lab1
+    /**
+     * @return a page that may have a free slot, or -1 if there is none.
+     */
+    private int findPageWithSpace() throws IOException {
+        synchronized (this.freeSpaceLock) {
+            int pgNo = getFreeSpace().nextSetBit(this.freeSpaceHint);
+            this.freeSpaceHint = (pgNo < 0) ? numPages() : pgNo;
+            return (pgNo < numPages()) ? pgNo : -1;
+        }
     }
 
     /**
@@ -129,16 +404,89 @@ public class HeapFile implements DbFile {
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
-        return null;
         // not necessary for lab1
+        if (!this.td.equals(t.getTupleDesc())) {
+            throw new DbException("tupledesc of the tuple does not match " + this.f);
+        }
+
+        while (true) {
+            int pgNo = findPageWithSpace();
+            if (pgNo < 0) {
+                // every page is full: append an empty one
+                synchronized (this) {
+                    getChannel();
+                    pgNo = numPages();
+                    writePage(new HeapPage(new HeapPageId(getId(), pgNo), HeapPage.createEmptyPageData()));
+                }
+                continue;
+            }
+
+            HeapPageId pid = new HeapPageId(getId(), pgNo);
+            boolean locked = Database.getBufferPool().holdsLock(tid, pid);
+            HeapPage page = (HeapPage)Database.getBufferPool().getPage(tid,
+                    pid, Permissions.READ_WRITE);
+            boolean inserted;
+            synchronized (page) {
+                // the tuple would go with a copy evicted since getPage
+                if (!Database.getBufferPool().isResident(page)) {
+                    continue;
+                }
+                inserted = page.getNumEmptySlots() > 0;
+                if (inserted) {
+                    page.insertTuple(t);
+                    // before eviction can take it for a clean page
+                    page.markDirty(true, tid);
+                }
+            }
+            if (!inserted || page.getNumEmptySlots() == 0) {
+                synchronized (this.freeSpaceLock) {
+                    setHasSpace(pgNo, false);
+                }
+            }
+            if (inserted) {
+                ArrayList<Page> modified = new ArrayList<Page>();
+                modified.add(page);
+                return modified;
+            }
+            // it filled up meanwhile, and we only looked at it
+            if (!locked && tid != null) {
+                Database.getBufferPool().releasePage(tid, pid);
+            }
+        }
     }
 
     // see DbFile.java for javadocs
     public Page deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
         // some code goes here
-        return null;
         // not necessary for lab1
+        RecordId rid = t.getRecordId();
+        if (rid == null || rid.getPageId().getTableId() != getId()) {
+            throw new DbException("tuple is not stored in " + this.f);
+        }
+
+        PageId pid = rid.getPageId();
+        HeapPage page;
+        while (true) {
+            page = (HeapPage)Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+            synchronized (page) {
+                // as in insertTuple
+                if (Database.getBufferPool().isResident(page)) {
+                    page.deleteTuple(t);
+                    page.markDirty(true, tid);
+                    break;
+                }
+            }
+        }
+        try {
+            synchronized (this.freeSpaceLock) {
+                getFreeSpace();
+                setHasSpace(pid.pageNumber(), true);
+            }
+        } catch (IOException e) {
+            throw new DbException("cannot read the free-space map of " + this.f + ": " + e.getMessage());
+        }
+        return page;
     }
 
     private class Iter implements DbFileIterator {
@@ -147,6 +495,14 @@ public class HeapFile implements DbFile {
         boolean opened                    = false;
         Iterator<Tuple> iterOfCurrentPage = null;
         int currentPageNum = 0;
+        /* a table larger than the buffer pool cannot stay cached anyway;
+         * scan it through the pool's ring instead of flushing the pool */
+        boolean sequential = false;
+        /* read-ahead window: pages [currentPageNum, prefetchedTo) have been
+         * requested, readAhead is how far ahead of the consumer to stay */
+        int readAhead   = MIN_READ_AHEAD;
+        int prefetchedTo = 0;
+        long lastWasted  = 0;
 
         public Iter(TransactionId tid){
             this.tid = tid;
@@ -164,31 +520,58 @@ public class HeapFile implements DbFile {
                 return false;
             }
 
-            if(this.iterOfCurrentPage == null ||
-                    (this.iterOfCurrentPage != null && this.iterOfCurrentPage.hasNext() == false))
+            // pages left empty by deletes are skipped
+            while(this.iterOfCurrentPage == null || this.iterOfCurrentPage.hasNext() == false)
             {
                 if(currentPageNum == HeapFile.this.pageNum){
                     return false;
                 }
 
                 HeapPageId hpid = new HeapPageId(HeapFile.this.getId(), this.currentPageNum);
-                HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, hpid, Permissions.READ_WRITE);
+                readAhead(hpid);
+                HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, hpid, Permissions.READ_ONLY,
+                        this.sequential);
                 if(p == null){
                     return false;
                 }else{
                     currentPageNum += 1;
                 }
                 this.iterOfCurrentPage = p.iterator();
-                if(this.iterOfCurrentPage.hasNext()){
-                    return true;
-                }else{
-                    return false;
-                }
             }
 
             return true;
         }
 
+        /**
+         * Pages are consumed in order, so once past the first page keep the
+         * next readAhead pages on their way into the buffer pool. The window
+         * doubles whenever the scan had to wait for a page and halves when
+         * prefetched pages were evicted before being used.
+         */
+        private void readAhead(HeapPageId hpid) {
+            int pgNo = hpid.pageNumber();
+            if(pgNo == 0){
+                return;
+            }
+
+            BufferPool bp = Database.getBufferPool();
+            long wasted = bp.getPrefetchWasted();
+            int maxReadAhead = Math.max(MIN_READ_AHEAD,
+                    Math.min(MAX_READ_AHEAD, bp.getNumPages() / 8));
+            if(wasted > this.lastWasted){
+                this.readAhead = Math.max(MIN_READ_AHEAD, this.readAhead / 2);
+            }else if(!bp.isCached(hpid) || pgNo >= this.prefetchedTo){
+                this.readAhead = Math.min(maxReadAhead, this.readAhead * 2);
+            }
+            this.lastWasted = wasted;
+
+            int end = Math.min(HeapFile.this.numPages(), pgNo + 1 + this.readAhead);
+            for(int i = Math.max(this.prefetchedTo, pgNo + 1); i < end; i++){
+                bp.prefetchPage(new HeapPageId(HeapFile.this.getId(), i), this.sequential);
+            }
+            this.prefetchedTo = Math.max(this.prefetchedTo, end);
+        }
+
         @Override
         public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
             if(! hasNext()){
@@ -200,7 +583,17 @@ public class HeapFile implements DbFile {
 
         @Override
         public void open() throws DbException, TransactionAbortedException {
+            try {
+                // make sure numPages() reflects the file on disk
+                HeapFile.this.getChannel();
+            } catch (IOException e) {
+                throw new DbException("cannot open " + HeapFile.this.f + ": " + e.getMessage());
+            }
             this.opened = true;
+            this.sequential = HeapFile.this.numPages() > Database.getBufferPool().getNumPages();
+            this.readAhead = MIN_READ_AHEAD;
+            this.prefetchedTo = 0;
+            this.lastWasted = Database.getBufferPool().getPrefetchWasted();
         }
 
         @Override
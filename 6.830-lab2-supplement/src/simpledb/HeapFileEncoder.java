@@ -1,7 +1,11 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.*;
 
 /**
  * HeapFileEncoder reads a comma delimited text file or accepts
@@ -77,6 +81,12 @@ public class HeapFileEncoder {
     * <p>
     * The format of the output file will be as specified in HeapPage and
     * HeapFile.
+    * <p>
+    * The input is streamed: it is cut into chunks of CHUNK_PAGES pages
+    * worth of lines, which are parsed and encoded in parallel on a
+    * fork-join pool, and the pages are written out in input order. At most
+    * a few chunks per core are held in memory at any time, whatever the
+    * size of the input.
     *
     * @see HeapPage
     * @see HeapFile
@@ -96,131 +106,170 @@ public class HeapFileEncoder {
           nrecbytes += typeAr[i].getLen();
       }
       int nrecords = (npagebytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
-      
-    //  per record, we need one bit; there are nrecords per page, so we need
-    // nrecords bits, i.e., ((nrecords/32)+1) integers.
-    int nheaderbytes = (nrecords / 8);
-    if (nheaderbytes * 8 < nrecords)
-        nheaderbytes++;  //ceiling
-    int nheaderbits = nheaderbytes * 8;
-
-    BufferedReader br = new BufferedReader(new FileReader(inFile));
-    FileOutputStream os = new FileOutputStream(outFile);
-
-    // our numbers probably won't be much larger than 1024 digits
-    char buf[] = new char[1024];
-
-    int curpos = 0;
-    int recordcount = 0;
-    int npages = 0;
-    int fieldNo = 0;
-
-    ByteArrayOutputStream headerBAOS = new ByteArrayOutputStream(nheaderbytes);
-    DataOutputStream headerStream = new DataOutputStream(headerBAOS);
-    ByteArrayOutputStream pageBAOS = new ByteArrayOutputStream(npagebytes);
-    DataOutputStream pageStream = new DataOutputStream(pageBAOS);
-
-    boolean done = false;
-    boolean first = true;
-    while (!done) {
-        int c = br.read();
-        
-        // Ignore Windows/Notepad special line endings
-        if (c == '\r')
-            continue;
-
-        if (c == '\n') {
-            if (first)
-                continue;
-            recordcount++;
-            first = true;
-        } else
-            first = false;
-        if (c == fieldSeparator || c == '\n' || c == '\r') {
-            String s = new String(buf, 0, curpos);
-            if (typeAr[fieldNo] == Type.INT_TYPE) {
-                try {
-                    pageStream.writeInt(Integer.parseInt(s.trim()));
-                } catch (NumberFormatException e) {
-                    System.out.println ("BAD LINE : " + s);
-                }
-            }
-            else   if (typeAr[fieldNo] == Type.STRING_TYPE) {
-                s = s.trim();
-                int overflow = Type.STRING_LEN - s.length();
-                if (overflow < 0) {
-                    String news = s.substring(0,Type.STRING_LEN);
-                    s  = news;
-                }
-                pageStream.writeInt(s.length());
-                pageStream.writeBytes(s);
-                while (overflow-- > 0)
-                    pageStream.write((byte)0);
-            }
-            curpos = 0;
-            if (c == '\n')
-                fieldNo = 0;
-            else
-                fieldNo++;
-            
-        } else if (c == -1) {
-            done = true;
-            
-        } else {
-            buf[curpos++] = (char)c;
-            continue;
-        }
-        
-        // if we wrote a full page of records, or if we're done altogether,
-        // write out the header of the page.
-        //
-        // in the header, write a 1 for bits that correspond to records we've
-        // written and 0 for empty slots.
-        //
-        // when we're done, also flush the page to disk, but only if it has
-        // records on it.  however, if this file is empty, do flush an empty
-        // page to disk.
-        if (recordcount >= nrecords
-            || done && recordcount > 0
-            || done && npages == 0) {
-            int i = 0;
-            byte headerbyte = 0;
-            
-            for (i=0; i<nheaderbits; i++) {
-                if (i < recordcount)
-                    headerbyte |= (1 << (i % 8));
-                
-                if (((i+1) % 8) == 0) {
-                    headerStream.writeByte(headerbyte);
-                    headerbyte = 0;
-                }
-            }
-            
-            if (i % 8 > 0)
-                headerStream.writeByte(headerbyte);
-            
-            // pad the rest of the page with zeroes
-            
-            for (i=0; i<(npagebytes - (recordcount * nrecbytes + nheaderbytes)); i++)
-                pageStream.writeByte(0);
-            
-            // write header and body to file
-            headerStream.flush();
-            headerBAOS.writeTo(os);
-            pageStream.flush();
-            pageBAOS.writeTo(os);
-            
-            // reset header and body for next page
-            headerBAOS = new ByteArrayOutputStream(nheaderbytes);
-            headerStream = new DataOutputStream(headerBAOS);
-            pageBAOS = new ByteArrayOutputStream(npagebytes);
-            pageStream = new DataOutputStream(pageBAOS);
-            
-            recordcount = 0;
-            npages++;
-        }
-    }
-    br.close();
-    os.close();
+      Layout layout = new Layout(npagebytes, nrecords, nrecbytes, numFields, typeAr, fieldSeparator);
+
+      ForkJoinPool pool = new ForkJoinPool();
+      int maxInFlight = 2 * pool.getParallelism();
+      // encoded chunks, in input order; the head is written out first
+      ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+
+      InputStream is = new FileInputStream(inFile);
+      FileOutputStream os = new FileOutputStream(outFile);
+      try {
+          byte[] buf = new byte[1 << 16];
+          Chunk chunk = new Chunk(layout, 0);
+          int n;
+          while ((n = is.read(buf)) > 0) {
+              for (int i = 0; i < n; i++) {
+                  byte c = buf[i];
+                  // Ignore Windows/Notepad special line endings
+                  if (c == '\r')
+                      continue;
+                  if (c != '\n') {
+                      chunk.append(c);
+                  } else if (chunk.endLine() && chunk.isFull()) {
+                      if (pending.size() == maxInFlight)
+                          writeChunk(pending.removeFirst(), os);
+                      pending.addLast(pool.submit(chunk));
+                      chunk = new Chunk(layout, chunk.seq + 1);
+                  }
+              }
+          }
+          chunk.endLine();
+          // if this file is empty, do write out an empty page
+          if (chunk.lines > 0 || chunk.seq == 0)
+              pending.addLast(pool.submit(chunk));
+
+          while (!pending.isEmpty())
+              writeChunk(pending.removeFirst(), os);
+      } finally {
+          pool.shutdownNow();
+          is.close();
+          os.close();
+      }
+  }
+
+  /** Number of pages of records in each chunk of a parallel conversion. */
+  static final int CHUNK_PAGES = 64;
+
+  private static void writeChunk(Future<byte[]> chunk, OutputStream os) throws IOException {
+      try {
+          os.write(chunk.get());
+      } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("conversion interrupted");
+      } catch (ExecutionException e) {
+          // the pool wraps checked exceptions of its tasks
+          for (Throwable t = e.getCause(); t != null; t = t.getCause()) {
+              if (t instanceof IOException)
+                  throw (IOException) t;
+          }
+          throw new RuntimeException(e.getCause());
+      }
+  }
+
+  /** The shape of the pages and records of one conversion. */
+  private static class Layout {
+      final int npagebytes;
+      final int nrecords;
+      final int nrecbytes;
+      final int nheaderbytes;
+      final int numFields;
+      final Type[] typeAr;
+      final char fieldSeparator;
+
+      Layout(int npagebytes, int nrecords, int nrecbytes, int numFields,
+              Type[] typeAr, char fieldSeparator) {
+          this.npagebytes = npagebytes;
+          this.nrecords = nrecords;
+          this.nrecbytes = nrecbytes;
+          //  per record, we need one bit; there are nrecords per page, so we
+          // need nrecords bits, i.e., ceiling(nrecords/8) bytes.
+          this.nheaderbytes = (nrecords + 7) / 8;
+          this.numFields = numFields;
+          this.typeAr = typeAr;
+          this.fieldSeparator = fieldSeparator;
+      }
+  }
+
+  /**
+   * The text of CHUNK_PAGES pages worth of non-empty input lines, or fewer
+   * for the last chunk. Calling it encodes the lines into pages.
+   */
+  private static class Chunk implements Callable<byte[]> {
+      final Layout layout;
+      final int seq;
+      byte[] text = new byte[1 << 16];
+      int length = 0;
+      /* the end of each line in text */
+      final int[] ends;
+      int lines = 0;
+
+      Chunk(Layout layout, int seq) {
+          this.layout = layout;
+          this.seq = seq;
+          this.ends = new int[layout.nrecords * CHUNK_PAGES];
+      }
+
+      void append(byte c) {
+          if (length == text.length)
+              text = Arrays.copyOf(text, 2 * length);
+          text[length++] = c;
+      }
+
+      /** @return true if a non-empty line was ended. */
+      boolean endLine() {
+          int start = (lines == 0) ? 0 : ends[lines - 1];
+          if (length == start)
+              return false;
+          ends[lines++] = length;
+          return true;
+      }
+
+      boolean isFull() {
+          return lines == ends.length;
+      }
+
+      public byte[] call() throws IOException {
+          int npages = Math.max(1, (lines + layout.nrecords - 1) / layout.nrecords);
+          ByteBuffer out = ByteBuffer.allocate(npages * layout.npagebytes);
+          for (int r = 0; r < lines; r++) {
+              int page = r / layout.nrecords;
+              int slot = r % layout.nrecords;
+              int pageStart = page * layout.npagebytes;
+              // in the header, a 1 for each slot holding a record
+              out.put(pageStart + slot / 8,
+                      (byte) (out.get(pageStart + slot / 8) | (1 << (slot % 8))));
+              out.position(pageStart + layout.nheaderbytes + slot * layout.nrecbytes);
+              encodeLine(r, out);
+          }
+          return out.array();
+      }
+
+      private void encodeLine(int r, ByteBuffer out) throws IOException {
+          int start = (r == 0) ? 0 : ends[r - 1];
+          String line = new String(text, start, ends[r] - start);
+          int pos = 0;
+          for (int fieldNo = 0; fieldNo < layout.numFields; fieldNo++) {
+              int end = line.indexOf(layout.fieldSeparator, pos);
+              if ((end < 0) != (fieldNo == layout.numFields - 1))
+                  throw new IOException("BAD LINE : " + line);
+              String s = line.substring(pos, (end < 0) ? line.length() : end).trim();
+              if (layout.typeAr[fieldNo] == Type.INT_TYPE) {
+                  try {
+                      out.putInt(Integer.parseInt(s));
+                  } catch (NumberFormatException e) {
+                      throw new IOException("BAD LINE : " + line);
+                  }
+              } else if (layout.typeAr[fieldNo] == Type.STRING_TYPE) {
+                  if (s.length() > Type.STRING_LEN)
+                      s = s.substring(0, Type.STRING_LEN);
+                  out.putInt(s.length());
+                  for (int i = 0; i < Type.STRING_LEN; i++)
+                      out.put((i < s.length()) ? (byte) s.charAt(i) : 0);
+              }
+              pos = end + 1;
+          }
+      }
   }
 }
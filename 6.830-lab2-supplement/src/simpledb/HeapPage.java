@@ -2,6 +2,8 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
@@ -15,12 +17,34 @@ public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte header[];
-    final Tuple tuples[];
     final int numSlots;
-
+    final int headerSize;
+    final int tupleSize;
+
+    /* The page image is the source of truth: the header bitmap followed by
+     * the tuple slots, exactly as stored on disk. Fields are decoded from it
+     * on demand, and a Tuple is only built for a slot that is handed out.
+     * A page built from a ByteBuffer, e.g. a slice of a memory-mapped file,
+     * reads that buffer in place until it is first changed; the change
+     * copies it into data, an array of the page's own, which image then
+     * wraps. data is only written under the monitor of the page. */
+    private volatile ByteBuffer image;
+    private byte[] data;
+    final AtomicReferenceArray<Tuple> tuples;
+
+    /* kept up to date by insertTuple and deleteTuple, so that neither they
+     * nor getNumEmptySlots have to count header bits */
+    private volatile int emptySlots;
+    /* no slot below this one is free */
+    private int firstFree;
+
+    /* null until the first change, as the page then still is its before
+     * image */
     byte[] oldData;
     private final Byte oldDataLock = new Byte((byte)0);
+    private volatile TransactionId dirtier = null;
+    /* LSN of the last log record of this page, 0 if unknown */
+    private volatile long lsn = 0;
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -39,27 +63,55 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        // callers reuse their arrays, e.g. HeapFile its read buffer
+        this(id, ByteBuffer.wrap(data), true);
+    }
+
+    /**
+     * Create a HeapPage from a buffer holding one page of data, starting at
+     * the buffer's current position, which is left unchanged. The buffer
+     * may be a slice of a memory-mapped file: the page reads it in place,
+     * without copying, and only copies it when it is first changed. Until
+     * then its contents must not change, other than by writing this page.
+     * <p>
+     * No tuple is decoded here: fields are read from the page image when
+     * they are asked for.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     * @see MappedHeapFile
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+        this(id, data, false);
+    }
+
+    private HeapPage(HeapPageId id, ByteBuffer data, boolean copy) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
+        this.headerSize = getHeaderSize();
+        this.tupleSize = td.getSize();
+        ByteBuffer buf = data.duplicate();
+        if (buf.remaining() < BufferPool.getPageSize()) {
+            throw new IOException("page data too short: " + buf.remaining() + " bytes");
+        }
+
+        if (copy) {
+            this.data = new byte[BufferPool.getPageSize()];
+            buf.get(this.data);
+            this.image = ByteBuffer.wrap(this.data);
+        } else {
+            buf.limit(buf.position() + BufferPool.getPageSize());
+            this.image = buf.slice();
         }
-        dis.close();
 
-        setBeforeImage();
+        this.tuples = new AtomicReferenceArray<Tuple>(numSlots);
+
+        // the padding bits past the last slot read as used
+        int used = numSlots - headerWords() * 64;
+        for (int w=0; w<headerWords(); w++)
+            used += Long.bitCount(headerWord(w));
+        this.emptySlots = numSlots - used;
+        this.firstFree = 0;
     }
 
     /** Retrieve the number of tuples on this page.
@@ -67,6 +119,14 @@ public class HeapPage implements Page {
     */
     private int getNumTuples() {        
         // some code goes here
+        return slotsPerPage(td);
+    }
+
+    /**
+     * @return the number of tuple slots on a page of a table with the given
+     *   TupleDesc.
+     */
+    static int slotsPerPage(TupleDesc td) {
         return ((BufferPool.getPageSize()) * 8 / (td.getSize() * 8 + 1));
     }
 
@@ -88,6 +148,10 @@ public class HeapPage implements Page {
             {
                 oldDataRef = oldData;
             }
+            if (oldDataRef == null) {
+                // not changed since it was read
+                oldDataRef = getPageData();
+            }
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
             e.printStackTrace();
@@ -100,7 +164,22 @@ public class HeapPage implements Page {
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = getPageData();
+        }
+    }
+
+    /* Called before every change to the page image, under the monitor of
+     * the page: takes the before image unless one was set since the page
+     * was read, and gives the page an image of its own. */
+    private void beforeChange() {
+        synchronized(oldDataLock)
+        {
+        if (oldData == null)
+            oldData = getPageData();
+        }
+        if (data == null) {
+            data = getPageData();
+            image = ByteBuffer.wrap(data);
         }
     }
 
@@ -114,36 +193,49 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Decodes one field of the tuple in the given slot straight from the
+     * page image, without building a Tuple.
+     *
+     * @param slotId the slot holding the tuple; it must be in use
+     * @param fieldId the index of the field in the tuple
+     * @throws NoSuchElementException if the slot is empty or cannot be parsed
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
+    public Field getField(int slotId, int fieldId) throws NoSuchElementException {
         if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
+            throw new NoSuchElementException("slot " + slotId + " is empty");
         }
-
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
+        Type type = td.getFieldType(fieldId);
+        int offset = headerSize + slotId * tupleSize + td.getFieldOffset(fieldId);
+        ByteBuffer buf = image.duplicate();
+        buf.limit(offset + type.getLen());
+        buf.position(offset);
         try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
+            return type.parse(buf);
         } catch (java.text.ParseException e) {
             e.printStackTrace();
             throw new NoSuchElementException("parsing error!");
         }
+    }
 
+    /**
+     * Returns the tuple in the given slot, decoding it on first use.
+     * Later calls return the same Tuple object.
+     */
+    private Tuple getTuple(int slotId) throws NoSuchElementException {
+        Tuple t = tuples.get(slotId);
+        if (t != null) {
+            return t;
+        }
+
+        if (!isSlotUsed(slotId)) {
+            throw new NoSuchElementException("slot " + slotId + " is empty");
+        }
+        t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, slotId));
+        t.readFrom(image, headerSize + slotId * tupleSize);
+        if (!tuples.compareAndSet(slotId, null, t)) {
+            t = tuples.get(slotId);
+        }
         return t;
     }
 
@@ -154,69 +246,19 @@ public class HeapPage implements Page {
      * The invariant here is that it should be possible to pass the byte
      * array generated by getPageData to the HeapPage constructor and
      * have it produce an identical HeapPage object.
+     * <p>
+     * The page image is kept up to date by every change to the page, so
+     * this is a plain copy of it.
      *
      * @see #HeapPage
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        byte[] copy = new byte[BufferPool.getPageSize()];
+        ByteBuffer buf = image.duplicate();
+        buf.position(0);
+        buf.get(copy);
+        return copy;
     }
 
     /**
@@ -240,9 +282,27 @@ public class HeapPage implements Page {
      *         already empty.
      * @param t The tuple to delete
      */
-    public void deleteTuple(Tuple t) throws DbException {
+    public synchronized void deleteTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
+        RecordId rid = t.getRecordId();
+        if (rid == null || !pid.equals(rid.getPageId())) {
+            throw new DbException("tuple is not on page " + pid);
+        }
+        int slot = rid.tupleno();
+        if (slot < 0 || slot >= numSlots || !isSlotUsed(slot)) {
+            throw new DbException("slot " + slot + " of page " + pid + " is already empty");
+        }
+
+        beforeChange();
+        markSlotUsed(slot, false);
+        int offset = headerSize + slot * tupleSize;
+        Arrays.fill(data, offset, offset + tupleSize, (byte)0);
+        tuples.set(slot, null);
+        emptySlots++;
+        if (slot < firstFree)
+            firstFree = slot;
+        t.setRecordId(null);
     }
 
     /**
@@ -252,9 +312,90 @@ public class HeapPage implements Page {
      *         is mismatch.
      * @param t The tuple to add.
      */
-    public void insertTuple(Tuple t) throws DbException {
+    public synchronized void insertTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
+        if (!td.equals(t.getTupleDesc())) {
+            throw new DbException("tupledesc of the tuple does not match page " + pid);
+        }
+        int slot = findFreeSlot();
+        if (slot < 0) {
+            throw new DbException("page " + pid + " is full");
+        }
+
+        beforeChange();
+        writeTuple(td, t, data, headerSize + slot * tupleSize);
+        markSlotUsed(slot, true);
+        // decoded again from the page image if asked for
+        tuples.set(slot, null);
+        emptySlots--;
+        firstFree = slot + 1;
+        t.setRecordId(new RecordId(pid, slot));
+    }
+
+    /**
+     * @return the number of 64-bit words covering the header.
+     */
+    private int headerWords() {
+        return (numSlots + 63) / 64;
+    }
+
+    /**
+     * Returns 64 bits of the header, slot w*64 in the lowest bit. Bits past
+     * the last slot read as used.
+     */
+    private long headerWord(int w) {
+        ByteBuffer img = image;
+        long word = 0;
+        int first = w * 8;
+        int last = Math.min(first + 8, headerSize);
+        for (int b = last - 1; b >= first; b--)
+            word = (word << 8) | (img.get(b) & 0xff);
+        int slotsInWord = numSlots - w * 64;
+        if (slotsInWord < 64)
+            word |= -1L << slotsInWord;
+        return word;
+    }
+
+    /**
+     * @return the lowest free slot, or -1 if the page is full.
+     */
+    private int findFreeSlot() {
+        if (emptySlots == 0)
+            return -1;
+        for (int w = firstFree / 64; w < headerWords(); w++) {
+            long free = ~headerWord(w);
+            if (free != 0)
+                return w * 64 + Long.numberOfTrailingZeros(free);
+        }
+        return -1;
+    }
+
+    /**
+     * Writes the fields of a tuple at the given offset of a page image, in
+     * the format read by Type.parse.
+     */
+    static void writeTuple(TupleDesc td, Tuple t, byte[] data, int offset) {
+        for (int j=0; j<td.numFields(); j++) {
+            if (td.getFieldType(j) == Type.INT_TYPE) {
+                writeInt(data, offset, t.getInt(j));
+            } else {
+                String value = ((StringField) t.getField(j)).getValue();
+                int len = Math.min(value.length(), Type.STRING_LEN);
+                writeInt(data, offset, len);
+                int pos = offset + 4;
+                for (int k=0; k<Type.STRING_LEN; k++)
+                    data[pos + k] = (k < len) ? (byte)value.charAt(k) : 0;
+            }
+            offset += td.getFieldType(j).getLen();
+        }
+    }
+
+    private static void writeInt(byte[] data, int offset, int value) {
+        data[offset]     = (byte)(value >>> 24);
+        data[offset + 1] = (byte)(value >>> 16);
+        data[offset + 2] = (byte)(value >>> 8);
+        data[offset + 3] = (byte)value;
     }
 
     /**
@@ -264,6 +405,7 @@ public class HeapPage implements Page {
     public void markDirty(boolean dirty, TransactionId tid) {
         // some code goes here
 	// not necessary for lab1
+        this.dirtier = dirty ? tid : null;
     }
 
     /**
@@ -272,7 +414,24 @@ public class HeapPage implements Page {
     public TransactionId isDirty() {
         // some code goes here
 	// Not necessary for lab1
-        return null;      
+        return this.dirtier;
+    }
+
+    /**
+     * Returns the LSN of the last log record of an update to this page, or 0
+     * if the page has not been logged since it was read.
+     *
+     * @see LogFile#logWrite
+     */
+    public long getLsn() {
+        return this.lsn;
+    }
+
+    /**
+     * Stamp this page with the LSN of the log record of its last update.
+     */
+    public void setLsn(long lsn) {
+        this.lsn = lsn;
     }
 
     /**
@@ -280,13 +439,7 @@ public class HeapPage implements Page {
      */
     public int getNumEmptySlots() {
         // some code goes here
-        int counter = 0;
-        for(int i = 0; i < this.numSlots; i++){
-            if(this.isSlotUsed(i) == false){
-                counter += 1;
-            }
-        }
-        return counter;
+        return this.emptySlots;
     }
 
     /**
@@ -296,7 +449,7 @@ public class HeapPage implements Page {
         // some code goes here
         int index = i/8;
 
-        if ((this.header[index] & (1 << (i % 8))) == 0) {
+        if ((this.image.get(index) & (1 << (i % 8))) == 0) {
             return false;
         } else {
             return true;
@@ -304,21 +457,30 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Abstraction to fill or clear a slot on this page.
+     * Abstraction to fill or clear a slot on this page. Requires
+     * beforeChange().
      */
     private void markSlotUsed(int i, boolean value) {
         // some code goes here
         // not necessary for lab1
+        if (value)
+            data[i/8] |= (byte)(1 << (i % 8));
+        else
+            data[i/8] &= (byte)~(1 << (i % 8));
     }
 
     private class Iter implements Iterator<Tuple>{
-        int cursor  = 0;
-        int lastRet = -1;
-        int numEmptySlots = HeapPage.this.getNumEmptySlots();
+        int cursor = nextUsed(0);
+
+        private int nextUsed(int from) {
+            while (from < numSlots && !isSlotUsed(from))
+                from++;
+            return from;
+        }
 
         @Override
         public boolean hasNext() {
-            return cursor != (numSlots - numEmptySlots);
+            return cursor < numSlots;
         }
 
         @Override
@@ -326,10 +488,14 @@ public class HeapPage implements Page {
             if(!hasNext()){
                 throw new NoSuchElementException();
             }
-            int i = cursor;
-            cursor += 1;
-            lastRet = i;
-            return  HeapPage.this.tuples[i];
+            Tuple t = getTuple(cursor);
+            cursor = nextUsed(cursor + 1);
+            return t;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
         }
     }
     /**
@@ -6,6 +6,18 @@ import java.util.*;
  */
 public class Join extends Operator {
 
+    private final JoinPredicate p;
+    private DbIterator child1;
+    private DbIterator child2;
+    private TupleDesc td;
+
+    /* block nested loops: every row of the current outer batch is matched
+     * against each batch of the inner relation in turn */
+    private transient TupleBatch outer;
+    private transient TupleBatch inner;
+    private int outerPos;
+    private int innerPos;
+
     /**
      * Constructor.  Accepts to children to join and the predicate
      * to join them on
@@ -16,6 +28,13 @@ public class Join extends Operator {
      */
     public Join(JoinPredicate p, DbIterator child1, DbIterator child2) {
         // some code goes here
+        this.p      = p;
+        this.child1 = child1;
+        this.child2 = child2;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return this.p;
     }
 
     /**
@@ -23,20 +42,35 @@ public class Join extends Operator {
      */
     public TupleDesc getTupleDesc() {
         // some code goes here
-        return null;
+        if (this.td == null) {
+            this.td = TupleDesc.merge(this.child1.getTupleDesc(), this.child2.getTupleDesc());
+        }
+        return this.td;
     }
 
     public void open()
         throws DbException, NoSuchElementException, TransactionAbortedException {
         // some code goes here
+        this.child1.open();
+        this.child2.open();
     }
 
     public void close() {
         // some code goes here
+        super.close();
+        this.outer = null;
+        this.inner = null;
+        this.child1.close();
+        this.child2.close();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
+        discardBuffered();
+        this.outer = null;
+        this.inner = null;
+        this.child1.rewind();
+        this.child2.rewind();
     }
 
     /**
@@ -60,6 +94,51 @@ public class Join extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        return null;
+        return nextFromBatch();
+    }
+
+    /**
+     * Operator.fetchNextBatch implementation.
+     * A block nested loops join: the inner relation is rewound once per
+     * batch of the outer relation rather than once per outer tuple, so
+     * matches come out grouped by inner batch.
+     */
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch result = new TupleBatch(getTupleDesc());
+        while (!result.isFull()) {
+            if (this.outer == null) {
+                this.outer = TupleBatch.fetch(this.child1);
+                this.inner = null;
+                if (this.outer == null) {
+                    break;
+                }
+            }
+            if (this.inner == null) {
+                this.inner = TupleBatch.fetch(this.child2);
+                this.outerPos = 0;
+                this.innerPos = 0;
+                if (this.inner == null) {
+                    // done with this outer batch
+                    this.child2.rewind();
+                    this.outer = null;
+                    continue;
+                }
+            }
+            if (this.outerPos == this.outer.size()) {
+                this.inner = null;
+                continue;
+            }
+
+            int left  = this.outer.row(this.outerPos);
+            int right = this.inner.row(this.innerPos);
+            if (this.p.filter(this.outer, left, this.inner, right)) {
+                result.addJoined(this.outer, left, this.inner, right);
+            }
+            if (++this.innerPos == this.inner.size()) {
+                this.innerPos = 0;
+                this.outerPos++;
+            }
+        }
+        return result.size() > 0 ? result : null;
     }
 }
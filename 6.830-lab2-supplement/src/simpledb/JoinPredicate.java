@@ -6,6 +6,10 @@ package simpledb;
  */
 public class JoinPredicate {
 
+    private final int field1;
+    private final Predicate.Op op;
+    private final int field2;
+
     /**
      * Constructor -- create a new predicate over two fields of two tuples.
      *
@@ -18,6 +22,9 @@ public class JoinPredicate {
      */
     public JoinPredicate(int field1, Predicate.Op op, int field2) {
         // some code goes here
+        this.field1 = field1;
+        this.op     = op;
+        this.field2 = field2;
     }
 
     /**
@@ -27,6 +34,31 @@ public class JoinPredicate {
      */
     public boolean filter(Tuple t1, Tuple t2) {
         // some code goes here
-        return false;
+        return t1.getField(this.field1).compare(this.op, t2.getField(this.field2));
+    }
+
+    /**
+     * Apply the predicate to a row of each of two batches. Integer columns
+     * are compared without creating any Field.
+     * @return true if the rows satisfy the predicate.
+     */
+    public boolean filter(TupleBatch b1, int row1, TupleBatch b2, int row2) {
+        if (b1.getTupleDesc().getFieldType(this.field1) == Type.INT_TYPE
+                && b2.getTupleDesc().getFieldType(this.field2) == Type.INT_TYPE) {
+            return IntField.compare(this.op, b1.getInt(this.field1, row1), b2.getInt(this.field2, row2));
+        }
+        return b1.getField(this.field1, row1).compare(this.op, b2.getField(this.field2, row2));
+    }
+
+    public int getField1() {
+        return this.field1;
+    }
+
+    public int getField2() {
+        return this.field2;
+    }
+
+    public Predicate.Op getOperator() {
+        return this.op;
     }
 }
@@ -0,0 +1,245 @@
+package simpledb;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LockManager grants page-level locks to transactions for strict two-phase
+ * locking: a transaction takes a shared lock on every page it reads and an
+ * exclusive lock on every page it writes, upgrading a shared lock it holds
+ * alone, and keeps them all until it completes.
+ * <p>
+ * Each page has its own lock object in a ConcurrentHashMap, created on
+ * first use and dropped once nobody holds or waits for it, so transactions
+ * working on different pages never contend on a common monitor. Waiters
+ * block on the monitor of the page lock.
+ * <p>
+ * Deadlocks are broken by timeouts: a transaction that waits longer than
+ * the lock timeout is refused the lock with a TransactionAbortedException,
+ * and is expected to abort, which releases its locks. Two holders of a
+ * shared lock that both ask to upgrade it are bound to deadlock, so the
+ * second one is refused at once.
+ *
+ * @Threadsafe
+ * @see BufferPool#getPage
+ */
+public class LockManager {
+
+    /** Milliseconds a transaction waits for a lock before giving up, by default. */
+    public static final long DEFAULT_TIMEOUT_MILLIS = 2000;
+
+    /** The lock on one page. Guarded by its own monitor. */
+    private static class PageLock {
+        /* the transactions sharing the lock, or its exclusive holder */
+        final HashSet<TransactionId> holders = new HashSet<TransactionId>();
+        boolean exclusive = false;
+        /* a holder waiting to upgrade its shared lock, if any */
+        TransactionId upgrader = null;
+        int waiters = 0;
+        /* removed from the lock table; a new lock must be made instead */
+        boolean retired = false;
+
+        boolean grantable(TransactionId tid, boolean write) {
+            if (holders.isEmpty())
+                return true;
+            if (holders.contains(tid))
+                return exclusive || !write || holders.size() == 1;
+            return !write && !exclusive && upgrader == null;
+        }
+    }
+
+    private final ConcurrentHashMap<PageId, PageLock> locks =
+            new ConcurrentHashMap<PageId, PageLock>();
+    /* the pages each transaction holds a lock on */
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> held =
+            new ConcurrentHashMap<TransactionId, Set<PageId>>();
+    private volatile long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+
+    private final AtomicLong acquisitions = new AtomicLong(0);
+    private final AtomicLong waits = new AtomicLong(0);
+    private final AtomicLong waitNanos = new AtomicLong(0);
+    private final AtomicLong timeouts = new AtomicLong(0);
+
+    /**
+     * Set how long a transaction waits for a lock before it is refused.
+     *
+     * @param millis the lock timeout, in milliseconds
+     */
+    public void setTimeout(long millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("negative lock timeout");
+        this.timeoutMillis = millis;
+    }
+
+    /**
+     * Acquire a lock on a page, blocking while another transaction holds a
+     * conflicting one. READ_ONLY asks for a shared lock and READ_WRITE for
+     * an exclusive lock; a transaction already holding a lock at least as
+     * strong gets it at once.
+     *
+     * @throws TransactionAbortedException if the lock could not be granted
+     *   within the lock timeout, or would deadlock for sure
+     */
+    public void acquire(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException {
+        boolean write = perm == Permissions.READ_WRITE;
+        acquisitions.incrementAndGet();
+        while (true) {
+            PageLock l = locks.get(pid);
+            if (l == null) {
+                PageLock fresh = new PageLock();
+                l = locks.putIfAbsent(pid, fresh);
+                if (l == null)
+                    l = fresh;
+            }
+            synchronized (l) {
+                if (l.retired)
+                    continue;
+                if (l.grantable(tid, write)) {
+                    grant(l, tid, pid, write);
+                    return;
+                }
+                waitFor(l, tid, pid, write);
+                return;
+            }
+        }
+    }
+
+    /* Wait until the lock can be granted, then grant it. Requires the
+     * monitor of l, which cannot be retired meanwhile since it counts us
+     * as a waiter. */
+    private void waitFor(PageLock l, TransactionId tid, PageId pid, boolean write)
+        throws TransactionAbortedException {
+        boolean upgrade = write && l.holders.contains(tid);
+        if (upgrade) {
+            if (l.upgrader != null) {
+                // both wait for the other to release its shared lock
+                timeouts.incrementAndGet();
+                throw new TransactionAbortedException();
+            }
+            l.upgrader = tid;
+        }
+        waits.incrementAndGet();
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        l.waiters++;
+        try {
+            while (!l.grantable(tid, write)) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    timeouts.incrementAndGet();
+                    throw new TransactionAbortedException();
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(l, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new TransactionAbortedException();
+                }
+            }
+            grant(l, tid, pid, write);
+        } finally {
+            waitNanos.addAndGet(System.nanoTime() - start);
+            l.waiters--;
+            if (upgrade) {
+                // readers held back for the upgrade may go on
+                l.upgrader = null;
+                l.notifyAll();
+            }
+            retireIfUnused(l, pid);
+        }
+    }
+
+    /* requires the monitor of l */
+    private void grant(PageLock l, TransactionId tid, PageId pid, boolean write) {
+        l.holders.add(tid);
+        if (write)
+            l.exclusive = true;
+        Set<PageId> pages = held.get(tid);
+        if (pages == null) {
+            Set<PageId> fresh = ConcurrentHashMap.newKeySet();
+            pages = held.putIfAbsent(tid, fresh);
+            if (pages == null)
+                pages = fresh;
+        }
+        pages.add(pid);
+    }
+
+    /* drop a lock nobody holds or waits for; requires the monitor of l */
+    private void retireIfUnused(PageLock l, PageId pid) {
+        if (l.holders.isEmpty() && l.waiters == 0 && !l.retired) {
+            l.retired = true;
+            locks.remove(pid, l);
+        }
+    }
+
+    /**
+     * Release the lock a transaction holds on a page, if any.
+     */
+    public void release(TransactionId tid, PageId pid) {
+        Set<PageId> pages = held.get(tid);
+        if (pages != null)
+            pages.remove(pid);
+        PageLock l = locks.get(pid);
+        if (l == null)
+            return;
+        synchronized (l) {
+            if (l.holders.remove(tid)) {
+                if (l.holders.isEmpty())
+                    l.exclusive = false;
+                l.notifyAll();
+            }
+            retireIfUnused(l, pid);
+        }
+    }
+
+    /**
+     * Release every lock a transaction holds.
+     */
+    public void releaseAll(TransactionId tid) {
+        Set<PageId> pages = held.remove(tid);
+        if (pages == null)
+            return;
+        for (PageId pid : pages)
+            release(tid, pid);
+    }
+
+    /** @return true if the transaction holds a lock on the page. */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        Set<PageId> pages = held.get(tid);
+        return pages != null && pages.contains(pid);
+    }
+
+    /** @return true if the transaction holds an exclusive lock on the page. */
+    public boolean holdsExclusive(TransactionId tid, PageId pid) {
+        PageLock l = locks.get(pid);
+        if (l == null)
+            return false;
+        synchronized (l) {
+            return l.exclusive && l.holders.contains(tid);
+        }
+    }
+
+    /** @return the number of lock requests, granted or not. */
+    public long getAcquisitions() {
+        return acquisitions.get();
+    }
+
+    /** @return the number of lock requests that had to wait. */
+    public long getWaits() {
+        return waits.get();
+    }
+
+    /** @return the total time lock requests spent waiting, in nanoseconds. */
+    public long getWaitNanos() {
+        return waitNanos.get();
+    }
+
+    /** @return the number of lock requests refused to break a deadlock. */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+}
@@ -0,0 +1,99 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * LogBuffer gathers log records in memory and appends them to the segments
+ * of a log with FileChannel writes, so that a record costs a few copies
+ * into the buffer rather than one write call per field.
+ * <p>
+ * Bytes are written at their own LSN, and are only guaranteed to be in the
+ * segment files after flush() and on disk after force(). LogBuffer is not
+ * thread safe; LogFile only uses it while holding its monitor.
+ *
+ * @see LogFile
+ * @see LogSegments
+ */
+class LogBuffer {
+
+    /** Default size of the buffer, in bytes. */
+    static final int DEFAULT_CAPACITY = 1 << 20;
+
+    private final LogSegments segments;
+    private final ByteBuffer buf;
+    /* LSN of the first byte in buf */
+    private long start;
+
+    /**
+     * Create a LogBuffer appending to a log.
+     *
+     * @param segments the segments of the log
+     * @param position the LSN of the next byte appended
+     * @param capacity the size of the buffer, in bytes
+     */
+    LogBuffer(LogSegments segments, long position, int capacity) {
+        this.segments = segments;
+        this.buf = ByteBuffer.allocateDirect(capacity);
+        this.start = position;
+    }
+
+    LogBuffer(LogSegments segments, long position) {
+        this(segments, position, DEFAULT_CAPACITY);
+    }
+
+    /** @return the LSN of the next byte appended. */
+    long position() {
+        return start + buf.position();
+    }
+
+    private void reserve(int n) throws IOException {
+        if (buf.remaining() < n)
+            flush();
+    }
+
+    void putByte(int v) throws IOException {
+        reserve(1);
+        buf.put((byte)v);
+    }
+
+    void putInt(int v) throws IOException {
+        reserve(LogFile.INT_SIZE);
+        buf.putInt(v);
+    }
+
+    void putLong(long v) throws IOException {
+        reserve(LogFile.LONG_SIZE);
+        buf.putLong(v);
+    }
+
+    void put(byte[] b) throws IOException {
+        put(b, 0, b.length);
+    }
+
+    void put(byte[] b, int off, int len) throws IOException {
+        reserve(len);
+        if (len <= buf.remaining()) {
+            buf.put(b, off, len);
+        } else {
+            // larger than the whole buffer: write it straight out
+            ByteBuffer src = ByteBuffer.wrap(b, off, len);
+            while (src.hasRemaining())
+                start += segments.write(src, start);
+        }
+    }
+
+    /** Write the buffered bytes to the segment files. */
+    void flush() throws IOException {
+        buf.flip();
+        while (buf.hasRemaining())
+            start += segments.write(buf, start);
+        buf.clear();
+    }
+
+    /** Write the buffered bytes to the segment files and force them to disk. */
+    void force() throws IOException {
+        flush();
+        segments.force();
+    }
+}
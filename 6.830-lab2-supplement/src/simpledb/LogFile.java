@@ -3,7 +3,8 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -35,46 +36,93 @@ must not be declared synchronized and must begin with a block like:
 */
 
 /**
-<p> The format of the log file is as follows:
+<p> The format of the log is as follows:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log file itself holds a single long integer, the LSN of the
+last written checkpoint, or -1 if there are no checkpoints.
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> The log records are stored in segment files next to the log file,
+as described in LogSegments.  Log records are variable length, and may
+run on from one segment into the next.
 
-<li> Each log record begins with an integer type and a long integer
-transaction id.
+<li> Each log record begins with an integer type, a long integer
+transaction id, and the long integer LSN of the previous record of the
+same transaction (its prevLSN), or -1 for the first one.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer LSN representing
+the position in the log where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are seven record types: ABORT, COMMIT, UPDATE, UPDATE_DIFF,
+BEGIN, CHECKPOINT and CLR
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
 after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+methods.  See LogFile.print() for an example.  A serialized page starts
+with its id: a byte tagging the PageCodec of its class, and the id as
+written by that codec.
+
+<li>UPDATE_DIFF records hold only the bytes of the page that changed.
+They consist of the page id as in a serialized Page (without the page
+data), an integer count of changed byte ranges, and for each
+range its integer offset, integer length, and the before and after
+bytes.  logWrite writes one whenever it is smaller than the UPDATE
+record for the same images.
+
+<li> CLR (compensation) records are written by rollback, one for each
+update it undoes.  They consist of the long integer LSN of the next
+record of the transaction left to undo (the prevLSN of the update
+undone), the integer type of the update undone, and the update as in an
+UPDATE or UPDATE_DIFF record, with before and after swapped.  A CLR is
+only ever redone, never undone.
 
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, followed by
+the dirty page table.  The format of the record is an integer count of
+the number of transactions, as well as a long integer transaction id, a
+long integer first record LSN and a long integer last record LSN for
+each active transaction, then an
+integer count of dirty pages, and for each its page id as in a serialized
+Page and the long integer LSN of its first update not known to be on
+disk (its recLSN.)
 
 </ul>
 
+<p> The LSN of a record is its position in the log, counted in bytes
+of records.  LSNs keep growing for the life of the database: logTruncate
+cuts off the front of the log by dropping whole segments, without moving
+the records that are left, and a new log starts where the last one ended,
+so that LSNs held by pages and transactions stay valid.
+
+<p> Records are appended through a LogBuffer: they are built in memory and
+written to the segments with FileChannel writes when the buffer fills up
+or the log is forced.  The LSN of a record is assigned when it is added to
+the buffer.  Records are read back through a LogReader, after flushing
+the buffer.
+
+<p> Recovery follows ARIES.  logWrite stamps each HeapPage with the LSN
+of its update record, HeapFile keeps the LSN of every page it writes, and
+the log keeps a dirty page table of pages logged but not yet written.  An
+analysis pass rebuilds the active transactions and dirty pages from the
+last checkpoint on, a redo pass repeats history, applying every update
+and CLR that is not on disk yet, spread over worker threads by page, and
+an undo pass rolls back the transactions that did not finish.  Rollback,
+at run time or during recovery, follows the prevLSN chain of a
+transaction from its last record, so it only reads the records of that
+transaction, and skips what earlier CLRs already undid.
+
 */
 
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private RandomAccessFile raf; // holds the checkpoint LSN
+    final LogSegments segments; //protected by this
+    private LogBuffer log = null; //protected by this; null until the first append
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -82,16 +130,159 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int UPDATE_DIFF_RECORD = 6;
+    static final int CLR_RECORD = 7;
     static final long NO_CHECKPOINT_ID = -1;
+    /* prevLSN of the first record of a transaction */
+    static final long NO_LSN = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
+    /* LSN of the first record of a log without segments; 0 is left to
+       mean that a page has no LSN */
+    static final long FIRST_LSN = 16;
+
+    /* changed byte ranges closer than this are logged as one range */
+    static final int DIFF_MERGE_GAP = 16;
+
+    /** Tag of the codec of HeapPages in log records. */
+    static final int HEAP_PAGE_TAG = 1;
+
+    /* page codecs by tag, and tags by page class */
+    private static final PageCodec[] codecs = new PageCodec[256];
+    private static final HashMap<Class<?>,Integer> codecTags = new HashMap<Class<?>,Integer>();
+
+    static {
+        registerPageCodec(HEAP_PAGE_TAG, HeapPage.class, new PageCodec() {
+            public void writeId(PageId pid, LogBuffer out) throws IOException {
+                out.putInt(pid.getTableId());
+                out.putInt(pid.pageNumber());
+            }
+
+            public PageId readId(LogReader in) throws IOException {
+                int tableId = in.readInt();
+                return new HeapPageId(tableId, in.readInt());
+            }
+
+            public Page newPage(PageId pid, byte[] data) throws IOException {
+                return new HeapPage((HeapPageId) pid, data);
+            }
+        });
+    }
+
+    /**
+     * Register the codec used to log pages of a class.
+     *
+     * @param tag the tag written into the log ahead of each such page id,
+     *   between 1 and 255; it must not change while a log holds it
+     * @param pageClass the class of the pages
+     * @param codec the codec of the pages
+     */
+    static synchronized void registerPageCodec(int tag, Class<? extends Page> pageClass,
+            PageCodec codec) {
+        if (tag < 1 || tag >= codecs.length)
+            throw new IllegalArgumentException("bad page codec tag " + tag);
+        codecs[tag] = codec;
+        codecTags.put(pageClass, tag);
+    }
+
+    private static synchronized int tagOf(Page p) throws IOException {
+        Integer tag = codecTags.get(p.getClass());
+        if (tag == null)
+            throw new IOException("no page codec for " + p.getClass().getName());
+        return tag;
+    }
 
     long currentOffset = -1;//protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
+    /* directory dropped segments are archived in, or null to delete them */
+    private volatile File archiveDir = null;
+
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    /* LSN of the last record of each running transaction */
+    HashMap<Long,Long> tidToLastLogRecord = new HashMap<Long,Long>();
+
+    /* read window for following prevLSN chains, which jump around */
+    private static final int CHAIN_READ_WINDOW = 1 << 12;
+
+    /* dirty page table: pages with a logged update that may not be on disk */
+    private final HashMap<PageId,DirtyPage> dirtyPages =
+        new HashMap<PageId,DirtyPage>(); //protected by this
+
+    /** A page in the dirty page table. */
+    static class DirtyPage {
+        final PageRef page;
+        /* LSN of the first update of the page since it was last written */
+        final long recLsn;
+
+        DirtyPage(PageRef page, long recLsn) {
+            this.page = page;
+            this.recLsn = recLsn;
+        }
+    }
+
+    /* number of threads the redo pass of recovery runs on */
+    private volatile int redoThreads = Runtime.getRuntime().availableProcessors();
+
+    /** Default for the longest a commit waits for others to share its force. */
+    public static final long DEFAULT_GROUP_COMMIT_DELAY_MICROS = 0;
+    /** Default for the most commits made durable by a single force. */
+    public static final int DEFAULT_GROUP_COMMIT_BATCH = 256;
+
+    /* Group commit: a committing transaction appends its COMMIT record and
+     * waits on a CommitRequest, while the log flusher thread forces the log
+     * once for every batch of waiting commits, outside of the monitor so
+     * that other transactions keep appending meanwhile. */
+    private volatile long groupCommitDelayMicros = DEFAULT_GROUP_COMMIT_DELAY_MICROS;
+    private volatile int groupCommitBatch = DEFAULT_GROUP_COMMIT_BATCH;
+    private final LinkedBlockingQueue<CommitRequest> commitQueue =
+        new LinkedBlockingQueue<CommitRequest>();
+    private Thread flusher = null; //protected by this
+    /* Queued to stop the flusher once it has forced the commits ahead of
+     * it. It is not interrupted: that would close the log segment it may
+     * be forcing, for good. */
+    private static final CommitRequest STOP_FLUSHER = new CommitRequest();
+    private final AtomicLong commitForces = new AtomicLong();
+
+    /**
+     * A COMMIT record waiting to be forced to disk; get() returns once it
+     * is durable.
+     */
+    static class CommitRequest extends FutureTask<Void> {
+        CommitRequest() {
+            super(new Callable<Void>() {
+                public Void call() {
+                    return null;
+                }
+            });
+        }
+
+        void failed(IOException e) {
+            setException(e);
+        }
+
+        /** Wait until the record is on disk. */
+        void await() throws IOException {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        get();
+                        return;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        throw (IOException) e.getCause();
+                    }
+                }
+            } finally {
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            }
+        }
+    }
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -105,8 +296,17 @@ public class LogFile {
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
+        this(f, LogSegments.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /** Constructor.
+        @param f The log file's name
+        @param segmentSize The size in bytes of the segment files of the log
+    */
+    public LogFile(File f, int segmentSize) throws IOException {
 	this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
+        segments = new LogSegments(f, segmentSize);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -130,9 +330,45 @@ public class LogFile {
             raf.seek(0);
             raf.setLength(0);
             raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            // LSNs go on from the old log, as pages on disk may hold them
+            segments.reset(segments.isEmpty() ? FIRST_LSN : segments.end());
+            log = null;
         }
+        if (log == null) {
+            log = new LogBuffer(segments, segments.end());
+            currentOffset = log.position();
+        }
+    }
+
+    /* a reader of the records in the log, by LSN */
+    private LogReader newReader() {
+        return new LogReader(segments);
+    }
+
+    /* Start a record of a transaction: its type, transaction id and
+     * prevLSN. The record becomes the last one of the transaction. */
+    private void putHeader(int type, long tid) throws IOException {
+        Long prev = tidToLastLogRecord.get(tid);
+        log.putInt(type);
+        log.putLong(tid);
+        log.putLong(prev == null ? NO_LSN : prev);
+        tidToLastLogRecord.put(tid, currentOffset);
+    }
+
+    /**
+     * Archive the segments dropped by logTruncate, compressed, into a
+     * directory, rather than delete them.
+     *
+     * @param dir the archive directory, or null to delete dropped segments
+     */
+    public void setArchiveDirectory(File dir) {
+        archiveDir = dir;
+    }
+
+    /* make the appended records readable from the file */
+    private void flushBuffer() throws IOException {
+        if (log != null)
+            log.flush();
     }
 
     public synchronized int getTotalRecords() {
@@ -158,12 +394,12 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                putHeader(ABORT_RECORD, tid.getId());
+                log.putLong(currentOffset);
+                currentOffset = log.position();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
+                tidToLastLogRecord.remove(tid.getId());
             }
         }
     }
@@ -173,21 +409,117 @@ public class LogFile {
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        CommitRequest request = new CommitRequest();
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            putHeader(COMMIT_RECORD, tid.getId());
+            log.putLong(currentOffset);
+            currentOffset = log.position();
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToLastLogRecord.remove(tid.getId());
+
+            if (flusher == null) {
+                flusher = new Thread(new Runnable() {
+                    public void run() {
+                        flushCommits();
+                    }
+                }, "simpledb-log-flusher");
+                flusher.setDaemon(true);
+                flusher.start();
+            }
+        }
+        // the flusher forces everything appended before the request is
+        // taken, so this record included
+        commitQueue.add(request);
+        request.await();
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /**
+     * Configure group commit.
+     *
+     * @param maxDelayMicros the longest the log flusher waits for more
+     *   commits before forcing the log for those it has; 0 only groups the
+     *   commits that queued up during the previous force
+     * @param maxBatch the most commits made durable by one force
+     */
+    public void setGroupCommit(long maxDelayMicros, int maxBatch) {
+        if (maxDelayMicros < 0 || maxBatch < 1)
+            throw new IllegalArgumentException("bad group commit settings");
+        groupCommitDelayMicros = maxDelayMicros;
+        groupCommitBatch = maxBatch;
+    }
+
+    /** @return the number of times the log flusher has forced the log. */
+    public long getCommitForces() {
+        return commitForces.get();
+    }
+
+    /* body of the log flusher thread */
+    private void flushCommits() {
+        ArrayList<CommitRequest> batch = new ArrayList<CommitRequest>();
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                CommitRequest r = commitQueue.take();
+                long deadline = System.nanoTime() + groupCommitDelayMicros * 1000;
+                while (r != null) {
+                    if (r == STOP_FLUSHER) {
+                        // shutting down: flush whatever is waiting, then exit
+                        stopping = true;
+                        commitQueue.drainTo(batch);
+                        batch.remove(STOP_FLUSHER);
+                        break;
+                    }
+                    batch.add(r);
+                    if (batch.size() >= groupCommitBatch)
+                        break;
+                    long wait = deadline - System.nanoTime();
+                    r = (wait > 0)
+                        ? commitQueue.poll(wait, TimeUnit.NANOSECONDS)
+                        : commitQueue.poll();
+                }
+            } catch (InterruptedException e) {
+                // only STOP_FLUSHER stops the flusher; force what it has
+            }
+            if (batch.isEmpty())
+                continue;
+
+            try {
+                forceUnlocked();
+                commitForces.incrementAndGet();
+                for (CommitRequest r : batch)
+                    r.run();
+            } catch (IOException e) {
+                for (CommitRequest r : batch)
+                    r.failed(e);
+            }
+            batch.clear();
+        }
+    }
+
+    /* Force the log without holding the monitor for the duration of the
+     * sync. */
+    private void forceUnlocked() throws IOException {
+        List<LogSegments.Segment> unforced;
+        synchronized (this) {
+            // a copy to the OS; only the sync is slow
+            flushBuffer();
+            unforced = segments.unforced();
+        }
+        for (LogSegments.Segment s : unforced)
+            s.force();
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+        (with provided         before and after images.)  When the
+        images differ in few bytes, an UPDATE_DIFF record holding only
+        those bytes is written instead.  The after image is stamped with
+        the LSN of the record, and the page stays in the dirty page table
+        until {@link #pageWritten} is called for it.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
@@ -197,102 +529,280 @@ public class LogFile {
     public  synchronized void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
         preAppend();
-        /* update record conists of
-
-           record type
-           transaction id
-           before page data (see writePageData)
-           after page data
-           start offset
-        */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        Debug.log("WRITE, offset = " + currentOffset);
+        long lsn = currentOffset;
+        int tag = tagOf(after);
+        byte[] beforeData = before.getPageData();
+        byte[] afterData = after.getPageData();
+        int[] ranges = diffRanges(beforeData, afterData);
+
+        if (ranges != null && diffSize(ranges) < beforeData.length + afterData.length) {
+            /* diff record consists of
+
+               record type
+               transaction id
+               prevLSN
+               page codec tag and id (see writePageId)
+               number of changed ranges
+               offset, length, before bytes and after bytes of each range
+               start offset
+            */
+            putHeader(UPDATE_DIFF_RECORD, tid.getId());
+            writePageId(log, tag, after.getId());
+            log.putInt(ranges.length / 2);
+            for (int i = 0; i < ranges.length; i += 2) {
+                int len = ranges[i + 1] - ranges[i];
+                log.putInt(ranges[i]);
+                log.putInt(len);
+                log.put(beforeData, ranges[i], len);
+                log.put(afterData, ranges[i], len);
+            }
+        } else {
+            /* update record conists of
+
+               record type
+               transaction id
+               prevLSN
+               before page data (see writePageData)
+               after page data
+               start offset
+            */
+            putHeader(UPDATE_RECORD, tid.getId());
+
+            writePageData(log,before);
+            writePageData(log,after);
+        }
+        log.putLong(currentOffset);
+        currentOffset = log.position();
+
+        if (after instanceof HeapPage)
+            ((HeapPage) after).setLsn(lsn);
+        if (!dirtyPages.containsKey(after.getId()))
+            dirtyPages.put(after.getId(), new DirtyPage(new PageRef(tag, after.getId()), lsn));
 
         Debug.log("WRITE OFFSET = " + currentOffset);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
+    /** Note that a page has been written to disk, with all its logged
+        updates, and so leaves the dirty page table.  The write need not
+        be forced yet: logCheckpoint forces the table files before the
+        log forgets about the page.
+        @param pid The page written
+    */
+    public synchronized void pageWritten(PageId pid) {
+        dirtyPages.remove(pid);
+    }
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+    /** Forget the dirty pages of a table whose file was replaced without
+        going through the log, e.g. by BulkLoader.  A checkpoint taken
+        afterwards keeps recovery from redoing the updates of the old
+        table onto the new pages.
+        @param tableId The table replaced
+    */
+    public synchronized void tableReplaced(int tableId) {
+        Iterator<PageId> it = dirtyPages.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getTableId() == tableId)
+                it.remove();
+        }
+    }
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+    /**
+     * Set the number of threads the redo pass of recover() runs on.
+     */
+    public void setRedoThreads(int n) {
+        if (n < 1)
+            throw new IllegalArgumentException("bad number of redo threads " + n);
+        redoThreads = n;
+    }
 
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
+    /**
+     * Returns the byte ranges in which two page images differ, as pairs of
+     * start (inclusive) and end (exclusive) offsets in increasing order,
+     * or null if the images are not the same size.
+     */
+    static int[] diffRanges(byte[] a, byte[] b) {
+        if (a.length != b.length)
+            return null;
+        int[] ranges = new int[8];
+        int n = 0;
+        int i = 0;
+        while (i < a.length) {
+            if (a[i] == b[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;
+            for (i = end; i < a.length && i - end < DIFF_MERGE_GAP; i++) {
+                if (a[i] != b[i])
+                    end = i + 1;
+            }
+            if (n == ranges.length)
+                ranges = Arrays.copyOf(ranges, 2 * n);
+            ranges[n++] = start;
+            ranges[n++] = end;
+            i = end;
         }
+        return Arrays.copyOf(ranges, n);
+    }
+
+    /* bytes taken by the ranges of an UPDATE_DIFF record */
+    private static int diffSize(int[] ranges) {
+        int size = INT_SIZE;
+        for (int i = 0; i < ranges.length; i += 2)
+            size += 2 * INT_SIZE + 2 * (ranges[i + 1] - ranges[i]);
+        return size;
+    }
+
+    void writePageData(LogBuffer out, Page p) throws IOException{
+        writePageId(out, tagOf(p), p.getId());
         byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
+        out.putInt(pageData.length);
+        out.put(pageData);
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+    /* the part of writePageData that identifies the page */
+    void writePageId(LogBuffer out, int tag, PageId pid) throws IOException{
+        //page id is:
+        // tag of the page codec
+        // id data, as written by the codec
+        out.putByte(tag);
+        codecs[tag].writeId(pid, out);
+    }
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+    Page readPageData(LogReader in) throws IOException {
+        PageRef ref = readPageId(in);
+        int pageSize = in.readInt();
+        byte[] pageData = new byte[pageSize];
+        in.readFully(pageData); //read before image
+        return ref.newPage(pageData);
+    }
 
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+    /** A page named in a log record, without its data. */
+    static class PageRef {
+        final int tag;
+        final PageId pid;
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+        PageRef(int tag, PageId pid) {
+            this.tag = tag;
+            this.pid = pid;
+        }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+        /** @return a page of this kind and id, holding data */
+        Page newPage(byte[] data) throws IOException {
+            return codecs[tag].newPage(pid, data);
+        }
+    }
+
+    /* reads what writePageId wrote */
+    PageRef readPageId(LogReader in) throws IOException {
+        int tag = in.readUnsignedByte();
+        if (codecs[tag] == null)
+            throw new IOException("no page codec for tag " + tag + " in log record");
+        return new PageRef(tag, codecs[tag].readId(in));
+    }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+    /**
+     * An UPDATE or UPDATE_DIFF record read back from the log.
+     */
+    static class Update {
+        final long tid;
+        final PageRef page;
+        /* LSN of the record, where the reader knows it */
+        long lsn;
+        /* the images of an UPDATE record */
+        byte[] before, after;
+        /* the changed ranges of an UPDATE_DIFF record */
+        int[] offsets;
+        byte[][] beforeBytes, afterBytes;
+
+        Update(long tid, PageRef page) {
+            this.tid = tid;
+            this.page = page;
+        }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+        PageId getId() {
+            return page.pid;
+        }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+        /** @return the update that undoes this one when redone */
+        Update inverse() {
+            Update u = new Update(tid, page);
+            u.before = after;
+            u.after = before;
+            u.offsets = offsets;
+            u.beforeBytes = afterBytes;
+            u.afterBytes = beforeBytes;
+            return u;
+        }
+
+        /**
+         * Returns the image of the page once this update is redone, or
+         * undone, given its current image.
+         */
+        byte[] apply(byte[] current, boolean redo) {
+            if (before != null)
+                return redo ? after : before;
+            byte[] data = current.clone();
+            for (int i = 0; i < offsets.length; i++) {
+                byte[] b = redo ? afterBytes[i] : beforeBytes[i];
+                System.arraycopy(b, 0, data, offsets[i], b.length);
+            }
+            return data;
         }
-        return newPage;
+    }
+
+    /* write what readUpdate reads */
+    void writeUpdate(LogBuffer out, Update u) throws IOException {
+        if (u.before != null) {
+            writePageId(out, u.page.tag, u.getId());
+            out.putInt(u.before.length);
+            out.put(u.before);
+            writePageId(out, u.page.tag, u.getId());
+            out.putInt(u.after.length);
+            out.put(u.after);
+        } else {
+            writePageId(out, u.page.tag, u.getId());
+            out.putInt(u.offsets.length);
+            for (int i = 0; i < u.offsets.length; i++) {
+                out.putInt(u.offsets[i]);
+                out.putInt(u.beforeBytes[i].length);
+                out.put(u.beforeBytes[i]);
+                out.put(u.afterBytes[i]);
+            }
+        }
+    }
 
+    /* read the rest of an UPDATE or UPDATE_DIFF record, after its type
+     * and transaction id */
+    Update readUpdate(LogReader in, int type, long tid) throws IOException {
+        Update u;
+        if (type == UPDATE_RECORD) {
+            u = new Update(tid, readPageId(in));
+            u.before = new byte[in.readInt()];
+            in.readFully(u.before);
+            readPageId(in); // the after image is of the same page
+            u.after = new byte[in.readInt()];
+            in.readFully(u.after);
+        } else {
+            u = new Update(tid, readPageId(in));
+            int n = in.readInt();
+            u.offsets = new int[n];
+            u.beforeBytes = new byte[n][];
+            u.afterBytes = new byte[n][];
+            for (int i = 0; i < n; i++) {
+                u.offsets[i] = in.readInt();
+                int len = in.readInt();
+                u.beforeBytes[i] = new byte[len];
+                in.readFully(u.beforeBytes[i]);
+                u.afterBytes[i] = new byte[len];
+                in.readFully(u.afterBytes[i]);
+            }
+        }
+        return u;
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -307,150 +817,157 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        tidToLastLogRecord.remove(tid.getId());
+        putHeader(BEGIN_RECORD, tid.getId());
+        log.putLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        currentOffset = log.position();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.  The checkpoint
+        is fuzzy: no page is flushed, since the record holds the dirty
+        page table, from which recovery knows how far back to redo.  Only
+        the log is locked, for as long as it takes to append the record
+        and force it.  The table files are then forced, so that the pages
+        written before the dirty page table was taken are on disk, and
+        only then does the record become the one recovery starts from.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        long startCpOffset;
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+            preAppend();
+            startCpOffset = currentOffset;
+            log.putInt(CHECKPOINT_RECORD);
+            log.putLong(-1); //no tid , but leave space for convenience
+            log.putLong(NO_LSN);
+
+            //write list of outstanding transactions
+            log.putInt(tidToFirstLogRecord.size());
+            for (Map.Entry<Long,Long> e : tidToFirstLogRecord.entrySet()) {
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                log.putLong(e.getKey());
+                log.putLong(e.getValue());
+                log.putLong(tidToLastLogRecord.get(e.getKey()));
+            }
+
+            //write the dirty page table
+            log.putInt(dirtyPages.size());
+            for (DirtyPage d : dirtyPages.values()) {
+                writePageId(log, d.page.tag, d.page.pid);
+                log.putLong(d.recLsn);
+            }
+            log.putLong(startCpOffset);
+            currentOffset = log.position();
+            force();
+        }
+
+        // pages left out of the dirty page table were written before it
+        // was taken, but maybe not forced: they must be on disk before
+        // recovery can start from this checkpoint, or the log be cut
+        forceTables();
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
+        synchronized (this) {
+            //once the CP and the pages are on disk, make sure the CP
+            // location at the beginning of the log file is updated
+            raf.seek(0);
+            long last = (raf.length() >= LONG_SIZE) ? raf.readLong() : NO_CHECKPOINT_ID;
+            if (startCpOffset > last) {
                 raf.seek(0);
                 raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+                raf.getChannel().force(true);
             }
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
 
         logTruncate();
     }
 
-    /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+    /* force the pages written to every table, with their LSNs, to disk */
+    private static void forceTables() throws IOException {
+        Catalog catalog = Database.getCatalog();
+        Iterator<Integer> ids = catalog.tableIdIterator();
+        while (ids.hasNext()) {
+            DbFile file;
+            try {
+                file = catalog.getDatabaseFile(ids.next());
+            } catch (NoSuchElementException e) {
+                continue; // dropped meanwhile
+            }
+            if (file instanceof HeapFile)
+                ((HeapFile) file).force();
+        }
+    }
 
-        long minLogRecord = cpLoc;
+    /** Truncate any unneeded portion of the log to reduce its space
+        consumption.  Only whole segments are dropped, so the records
+        that are left stay where they are; the dropped segments are
+        archived or deleted after the log is unlocked.
+    */
+    public void logTruncate() throws IOException {
+        List<File> dropped;
+        synchronized (this) {
+            preAppend();
+            flushBuffer();
+            raf.seek(0);
+            long cpLoc = raf.readLong();
+            if (cpLoc == NO_CHECKPOINT_ID)
+                return;
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
+            LogReader in = newReader();
+            in.seek(cpLoc);
+            int cpType = in.readInt();
             @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+            long cpTid = in.readLong();
+            in.readLong();
 
             if (cpType != CHECKPOINT_RECORD) {
                 throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
             }
 
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+            // the checkpoint, the first records of the transactions active at
+            // the time and the updates not on disk are still needed
+            Checkpoint cp = readCheckpoint(in);
+            long minLogRecord = cpLoc;
+            for (long firstLogRecord : cp.active.values())
+                minLogRecord = Math.min(minLogRecord, firstLogRecord);
+            for (DirtyPage d : cp.dirtyPages.values())
+                minLogRecord = Math.min(minLogRecord, d.recLsn);
+
+            // we can truncate everything before minLogRecord
+            segments.force();
+            dropped = segments.dropBefore(minLogRecord);
+            Debug.log("TRUNCATING LOG;  DROPPED " + dropped.size() + " SEGMENTS ; NEW START : " + segments.first());
         }
+        LogSegments.dispose(dropped, archiveDir);
+    }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+    /** The contents of a CHECKPOINT record. */
+    static class Checkpoint {
+        /* first and last LSN of each active transaction */
+        final HashMap<Long,Long> active = new HashMap<Long,Long>();
+        final HashMap<Long,Long> last = new HashMap<Long,Long>();
+        final HashMap<PageId,DirtyPage> dirtyPages = new HashMap<PageId,DirtyPage>();
+    }
 
-            } catch (EOFException e) {
-                break;
-            }
+    /* read the rest of a CHECKPOINT record, after its type, transaction
+     * id and prevLSN, but for its start LSN */
+    Checkpoint readCheckpoint(LogReader in) throws IOException {
+        Checkpoint cp = new Checkpoint();
+        int numXactions = in.readInt();
+        while (numXactions-- > 0) {
+            long xid = in.readLong();
+            cp.active.put(xid, in.readLong());
+            cp.last.put(xid, in.readLong());
         }
-
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
+        int numDirty = in.readInt();
+        while (numDirty-- > 0) {
+            PageRef ref = readPageId(in);
+            cp.dirtyPages.put(ref.pid, new DirtyPage(ref, in.readLong()));
+        }
+        return cp;
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -467,18 +984,153 @@ public class LogFile {
             synchronized(this) {
                 preAppend();
                 // some code goes here
+                Long lastRecord = tidToLastLogRecord.get(tid.getId());
+                if (lastRecord == null) {
+                    throw new NoSuchElementException("no log records for transaction " + tid.getId());
+                }
+                flushBuffer();
+                undo(Collections.singleton(tid.getId()));
+            }
+        }
+    }
+
+    /* Roll back transactions, by following the prevLSN chain of each from
+     * its last record, latest record first across all of them. A CLR is
+     * logged for each update undone, the log is forced, and then the undos
+     * are installed, each page stamped with the LSN of its CLR. A CLR met
+     * on the way sends the walk to the record after the last one it undid.
+     * The caller must hold the monitors, with the buffer flushed. */
+    private void undo(Collection<Long> tids) throws IOException {
+        PriorityQueue<Long> toUndo = new PriorityQueue<Long>(11, Collections.reverseOrder());
+        for (Long tid : tids) {
+            Long last = tidToLastLogRecord.get(tid);
+            if (last != null)
+                toUndo.add(last);
+        }
+
+        ArrayList<Update> clrs = new ArrayList<Update>();
+        LogReader in = new LogReader(segments, CHAIN_READ_WINDOW);
+        while (!toUndo.isEmpty()) {
+            long lsn = toUndo.poll();
+            in.seek(lsn);
+            int type = in.readInt();
+            long recordTid = in.readLong();
+            long next = in.readLong();
+            if (type == UPDATE_RECORD || type == UPDATE_DIFF_RECORD) {
+                Update clr = readUpdate(in, type, recordTid).inverse();
+                clr.lsn = logClr(clr, type, next);
+                clrs.add(clr);
+            } else if (type == CLR_RECORD) {
+                next = in.readLong();
+            } else if (type == BEGIN_RECORD) {
+                next = NO_LSN;
             }
+            if (next != NO_LSN)
+                toUndo.add(next);
+        }
+
+        // write ahead: the CLRs are on disk before the pages
+        force();
+        for (Update clr : clrs)
+            install(clr);
+    }
+
+    /* Append a CLR redoing clr, the inverse of an update of the given type;
+     * undoNext is the prevLSN of the update. Returns the LSN of the CLR. */
+    private long logClr(Update clr, int type, long undoNext) throws IOException {
+        long lsn = currentOffset;
+        putHeader(CLR_RECORD, clr.tid);
+        log.putLong(undoNext);
+        log.putInt(type);
+        writeUpdate(log, clr);
+        log.putLong(lsn);
+        currentOffset = log.position();
+        return lsn;
+    }
+
+    /* Read the rest of a record after its type, transaction id and prevLSN,
+     * but for its start offset. Returns the update it redoes, if any. */
+    private Update readRecordBody(LogReader in, int type, long tid) throws IOException {
+        switch (type) {
+        case UPDATE_RECORD:
+        case UPDATE_DIFF_RECORD:
+            return readUpdate(in, type, tid);
+        case CLR_RECORD:
+            in.readLong(); // undoNext
+            return readUpdate(in, in.readInt(), tid);
+        case CHECKPOINT_RECORD:
+            readCheckpoint(in);
+            return null;
+        default:
+            return null;
+        }
+    }
+
+    /* Redo an update on disk, stamping the page with the LSN of the
+     * update, and drop the page from the buffer pool, where it would be
+     * out of date. */
+    private void install(Update u) throws IOException {
+        PageId pid = u.getId();
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        byte[] current = (u.before != null) ? null : diskImage(file, pid);
+        Page page = u.page.newPage(u.apply(current, true));
+        if (page instanceof HeapPage)
+            ((HeapPage) page).setLsn(u.lsn);
+        file.writePage(page);
+        Database.getBufferPool().discardPage(pid);
+    }
+
+    /* the image of a page on disk, or zeros if it never reached the disk */
+    private static byte[] diskImage(DbFile file, PageId pid) {
+        try {
+            return file.readPage(pid).getPageData();
+        } catch (IllegalArgumentException e) {
+            // past the end of the file
+            return new byte[BufferPool.getPageSize()];
         }
     }
 
+    /* the LSN a page was written with, or 0 if the file does not keep it */
+    private static long diskLsn(DbFile file, PageId pid) throws IOException {
+        if (file instanceof HeapFile)
+            return ((HeapFile) file).getPageLsn(pid.pageNumber());
+        return 0;
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            // with every page on disk, the checkpoint leaves nothing to redo
+            Database.getBufferPool().flushAllPages();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            Thread f;
+            synchronized (this) {
+                f = flusher;
+                flusher = null;
+            }
+            if (f != null) {
+                // the flusher forces the log outside of the monitor, so
+                // it must be done before the log is closed
+                commitQueue.add(STOP_FLUSHER);
+                boolean interrupted = false;
+                while (true) {
+                    try {
+                        f.join();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            }
+            synchronized (this) {
+                raf.close();
+                segments.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -494,17 +1146,259 @@ public class LogFile {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
+                flushBuffer();
+                if (segments.isEmpty()) {
+                    // nothing was ever logged: start a new log on first append
+                    recoveryUndecided = true;
+                    return;
+                }
+                long cpLsn = NO_CHECKPOINT_ID;
+                if (raf.length() >= LONG_SIZE) {
+                    raf.seek(0);
+                    cpLsn = raf.readLong();
+                }
+                log = null;
+                LogReader in = newReader();
+
+                // analysis: the transactions active at the end of the log
+                // (the losers) with their first and last LSN, and the
+                // pages that may miss logged updates
+                HashMap<Long,Long> losers = new HashMap<Long,Long>();
+                HashMap<Long,Long> last = new HashMap<Long,Long>();
+                HashMap<PageId,DirtyPage> dirty = new HashMap<PageId,DirtyPage>();
+                long start = segments.first();
+                if (cpLsn != NO_CHECKPOINT_ID) {
+                    in.seek(cpLsn);
+                    in.readInt();
+                    in.readLong();
+                    in.readLong();
+                    Checkpoint cp = readCheckpoint(in);
+                    losers.putAll(cp.active);
+                    last.putAll(cp.last);
+                    dirty.putAll(cp.dirtyPages);
+                    // commits and aborts are needed back to the first
+                    // update that may have to be redone
+                    start = cpLsn;
+                    for (DirtyPage d : dirty.values())
+                        start = Math.min(start, d.recLsn);
+                }
+
+                in.seek(start);
+                long end = start;
+                try {
+                    while (end < in.length()) {
+                        int type = in.readInt();
+                        long recordTid = in.readLong();
+                        in.readLong();
+                        Update u = readRecordBody(in, type, recordTid);
+                        in.readLong();
+                        if (type == BEGIN_RECORD) {
+                            losers.put(recordTid, end);
+                        } else if (type == COMMIT_RECORD || type == ABORT_RECORD) {
+                            losers.remove(recordTid);
+                            last.remove(recordTid);
+                            end = in.position();
+                            continue;
+                        } else if (u != null && end > cpLsn && !dirty.containsKey(u.getId())) {
+                            dirty.put(u.getId(), new DirtyPage(u.page, end));
+                        }
+                        if (type != CHECKPOINT_RECORD) {
+                            // the scan may start before the checkpoint
+                            Long l = last.get(recordTid);
+                            last.put(recordTid, l == null ? end : Math.max(l, end));
+                        }
+                        end = in.position();
+                    }
+                } catch (EOFException e) {
+                    // the last record was cut short by the crash
+                    segments.setEnd(end);
+                }
+
+                redo(in, dirty, end);
+
+                // undo: roll the losers back from their last record
+                tidToFirstLogRecord.clear();
+                tidToLastLogRecord.clear();
+                dirtyPages.clear();
+                preAppend();
+                for (Long tid : losers.keySet())
+                    tidToLastLogRecord.put(tid, last.get(tid));
+                undo(losers.keySet());
+                for (Long tid : losers.keySet()) {
+                    putHeader(ABORT_RECORD, tid);
+                    log.putLong(currentOffset);
+                    currentOffset = log.position();
+                }
+                tidToLastLogRecord.clear();
+                force();
             }
          }
     }
 
+    /* marks the end of the updates handed to a RedoWorker */
+    private static final Update END_OF_REDO = new Update(-1, null);
+
+    /* updates handed to a RedoWorker and not yet applied */
+    private static final int REDO_QUEUE = 1024;
+
+    /* Redo pass: repeat history, applying the updates and CLRs of the
+     * dirty pages that are not on disk yet, from the oldest recLSN to end,
+     * whichever transaction they belong to; the undo pass then rolls the
+     * losers back on top.  The log is read
+     * here, in order, and each update is handed to the worker that owns
+     * its page, so that the updates of a page are applied in order while
+     * different pages are redone in parallel. */
+    private void redo(LogReader in, HashMap<PageId,DirtyPage> dirty, long end)
+        throws IOException {
+        if (dirty.isEmpty())
+            return;
+        long redoLsn = Long.MAX_VALUE;
+        for (DirtyPage d : dirty.values())
+            redoLsn = Math.min(redoLsn, d.recLsn);
+
+        int n = redoThreads;
+        RedoWorker[] workers = new RedoWorker[n];
+        ExecutorService pool = Executors.newFixedThreadPool(n);
+        ArrayList<Future<Void>> results = new ArrayList<Future<Void>>();
+        for (int i = 0; i < n; i++) {
+            workers[i] = new RedoWorker();
+            results.add(pool.submit(workers[i]));
+        }
+
+        boolean interrupted = false;
+        try {
+            in.seek(redoLsn);
+            while (in.position() < end) {
+                long lsn = in.position();
+                int type = in.readInt();
+                long recordTid = in.readLong();
+                in.readLong();
+                Update u = readRecordBody(in, type, recordTid);
+                in.readLong();
+                if (u == null)
+                    continue;
+                DirtyPage d = dirty.get(u.getId());
+                if (d == null || lsn < d.recLsn)
+                    continue; // the page was written since
+                u.lsn = lsn;
+                interrupted |= handOver(workers[(u.getId().hashCode() & 0x7fffffff) % n], u);
+            }
+        } finally {
+            for (RedoWorker w : workers)
+                interrupted |= handOver(w, END_OF_REDO);
+            pool.shutdown();
+        }
+
+        try {
+            for (Future<Void> r : results) {
+                while (true) {
+                    try {
+                        r.get();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /* put an update on the queue of a worker; returns whether the thread
+     * was interrupted meanwhile */
+    private static boolean handOver(RedoWorker w, Update u) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                w.queue.put(u);
+                return interrupted;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+    }
+
+    /**
+     * Applies the updates of its share of the pages during the redo pass.
+     * The image of each page is kept in memory from its first update to the
+     * end of the pass, and written once, stamped with the LSN of the last
+     * update applied.  Updates already on disk, as told by the LSN the page
+     * was written with, are skipped.
+     */
+    private static class RedoWorker implements Callable<Void> {
+        final ArrayBlockingQueue<Update> queue = new ArrayBlockingQueue<Update>(REDO_QUEUE);
+
+        /** A page being redone. */
+        static class RedoPage {
+            final PageRef ref;
+            byte[] data;
+            long lsn;
+            boolean changed = false;
+
+            RedoPage(PageRef ref) {
+                this.ref = ref;
+            }
+        }
+
+        public Void call() throws Exception {
+            HashMap<PageId,RedoPage> pages = new HashMap<PageId,RedoPage>();
+            Exception failure = null;
+            while (true) {
+                Update u = queue.take();
+                if (u == END_OF_REDO)
+                    break;
+                if (failure != null)
+                    continue; // keep taking updates, so that none blocks
+                try {
+                    RedoPage p = pages.get(u.getId());
+                    if (p == null) {
+                        DbFile file = Database.getCatalog().getDatabaseFile(u.getId().getTableId());
+                        p = new RedoPage(u.page);
+                        p.data = diskImage(file, u.getId());
+                        p.lsn = diskLsn(file, u.getId());
+                        pages.put(u.getId(), p);
+                    }
+                    if (u.lsn > p.lsn) {
+                        p.data = u.apply(p.data, true);
+                        p.lsn = u.lsn;
+                        p.changed = true;
+                    }
+                } catch (Exception e) {
+                    failure = e;
+                }
+            }
+            if (failure != null)
+                throw failure;
+
+            for (RedoPage p : pages.values()) {
+                if (!p.changed)
+                    continue;
+                Page page = p.ref.newPage(p.data);
+                if (page instanceof HeapPage)
+                    ((HeapPage) page).setLsn(p.lsn);
+                Database.getCatalog().getDatabaseFile(p.ref.pid.getTableId()).writePage(page);
+                Database.getBufferPool().discardPage(p.ref.pid);
+            }
+            return null;
+        }
+    }
+
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
         // some code goes here
     }
 
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        if (log != null)
+            log.force();
+        else
+            segments.force();
     }
 
 }
@@ -0,0 +1,111 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * LogReader reads the segments of a log through a window of buffered
+ * bytes, so that decoding a record costs copies out of memory rather than
+ * one read call per field. Positions are LSNs, and reads run on from one
+ * segment into the next.
+ *
+ * @see LogBuffer
+ * @see LogSegments
+ */
+class LogReader {
+
+    /** Default size of the read window, in bytes. */
+    static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private final LogSegments segments;
+    private final ByteBuffer buf;
+    /* LSN of the first byte in buf */
+    private long start;
+
+    LogReader(LogSegments segments, int capacity) {
+        this.segments = segments;
+        this.buf = ByteBuffer.allocate(capacity);
+        this.buf.limit(0);
+    }
+
+    LogReader(LogSegments segments) {
+        this(segments, DEFAULT_CAPACITY);
+    }
+
+    /** @return the LSN of the next byte read. */
+    long position() {
+        return start + buf.position();
+    }
+
+    /** @return the LSN just past the end of the log. */
+    long length() throws IOException {
+        return segments.end();
+    }
+
+    void seek(long pos) {
+        if (pos >= start && pos <= start + buf.limit()) {
+            buf.position((int)(pos - start));
+        } else {
+            start = pos;
+            buf.clear();
+            buf.limit(0);
+        }
+    }
+
+    void skip(long n) {
+        seek(position() + n);
+    }
+
+    /* make at least n bytes available, n no more than the capacity */
+    private void fill(int n) throws IOException {
+        if (buf.remaining() >= n)
+            return;
+        start += buf.position();
+        buf.compact();
+        try {
+            while (buf.position() < n) {
+                if (segments.read(buf, start + buf.position()) < 0)
+                    throw new EOFException();
+            }
+        } finally {
+            buf.flip();
+        }
+    }
+
+    int readUnsignedByte() throws IOException {
+        fill(1);
+        return buf.get() & 0xFF;
+    }
+
+    int readInt() throws IOException {
+        fill(LogFile.INT_SIZE);
+        return buf.getInt();
+    }
+
+    long readLong() throws IOException {
+        fill(LogFile.LONG_SIZE);
+        return buf.getLong();
+    }
+
+    void readFully(byte[] b) throws IOException {
+        int n = Math.min(b.length, buf.remaining());
+        buf.get(b, 0, n);
+        if (n == b.length)
+            return;
+        if (b.length - n <= buf.capacity()) {
+            fill(b.length - n);
+            buf.get(b, n, b.length - n);
+        } else {
+            // larger than the window: read it straight in
+            long pos = position();
+            ByteBuffer dst = ByteBuffer.wrap(b, n, b.length - n);
+            while (dst.hasRemaining()) {
+                int r = segments.read(dst, pos);
+                if (r < 0)
+                    throw new EOFException();
+                pos += r;
+            }
+            seek(pos);
+        }
+    }
+}
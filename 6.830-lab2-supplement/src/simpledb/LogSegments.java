@@ -0,0 +1,367 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * LogSegments stores a log as a sequence of segment files of a fixed size,
+ * named after the log file and the LSN of their first byte, for instance
+ * log.0000000000000010. Each segment starts with a header holding a magic
+ * number and that LSN, followed by the bytes of the log from there on;
+ * records run on from the end of one segment into the next. Bytes are
+ * addressed by LSN, and the segment holding an LSN is found by binary
+ * search.
+ * <p>
+ * Cutting off the front of the log drops whole segments, which are then
+ * deleted, or compressed into an archive directory, where their header
+ * still tells which part of the log they hold.
+ * <p>
+ * LogSegments is not thread safe; LogFile only uses it while holding its
+ * monitor, except to force segments it took from unforced().
+ *
+ * @see LogBuffer
+ * @see LogReader
+ */
+class LogSegments {
+
+    /** Default size of a segment file, header included, in bytes. */
+    static final int DEFAULT_SEGMENT_SIZE = 16 << 20;
+
+    /** The first int of every segment file. */
+    static final int MAGIC = 0x53444c47;
+
+    /* magic number and LSN of the first byte */
+    static final int HEADER_SIZE = LogFile.INT_SIZE + LogFile.LONG_SIZE;
+
+    /** A segment file. */
+    static class Segment {
+        final File file;
+        final FileChannel ch;
+        /* LSN of the first byte after the header */
+        final long start;
+        /* bytes of the log it holds once full */
+        final long capacity;
+        /* LSN just past the last byte written */
+        volatile long end;
+        /* the bytes before this LSN are on disk */
+        private long forced;
+        /* closed by dropBefore with every byte forced */
+        private boolean dropped;
+
+        Segment(File file, FileChannel ch, long start, long end, long capacity) {
+            this.file = file;
+            this.ch = ch;
+            this.start = start;
+            this.capacity = capacity;
+            this.end = end;
+            this.forced = end;
+        }
+
+        boolean needsForce() {
+            synchronized (this) {
+                return forced < end;
+            }
+        }
+
+        /**
+         * Force the bytes written so far to disk. A segment dropped
+         * meanwhile was forced before being closed, so there is nothing
+         * left to do for it; a segment closed any other way is an error.
+         */
+        void force() throws IOException {
+            long target;
+            synchronized (this) {
+                if (forced >= end)
+                    return;
+                target = end;
+            }
+            try {
+                ch.force(true);
+            } catch (ClosedChannelException e) {
+                synchronized (this) {
+                    if (!dropped)
+                        throw e;
+                }
+                return;
+            }
+            synchronized (this) {
+                forced = Math.max(forced, target);
+            }
+        }
+
+        /* close a segment dropped from the front of the log */
+        void drop() throws IOException {
+            synchronized (this) {
+                // force() may only take the closed channel for a success
+                // if nothing is left to force
+                dropped = forced >= end;
+            }
+            ch.close();
+        }
+    }
+
+    private final File dir;
+    private final String name;
+    private final int segmentSize;
+    /* in LSN order, each starting where the previous one ends */
+    private final ArrayList<Segment> segments = new ArrayList<Segment>();
+    /* segment files found past a gap in the log, cut off by a crash */
+    private final ArrayList<File> stray = new ArrayList<File>();
+
+    /**
+     * Open the segments of a log, creating none.
+     *
+     * @param logFile the log file the segments are named after
+     * @param segmentSize the size of segment files created, header included
+     */
+    LogSegments(File logFile, int segmentSize) throws IOException {
+        if (segmentSize <= HEADER_SIZE)
+            throw new IllegalArgumentException("log segments of " + segmentSize + " bytes are too small");
+        this.dir = logFile.getAbsoluteFile().getParentFile();
+        this.name = logFile.getName();
+        this.segmentSize = segmentSize;
+
+        TreeMap<Long,File> found = new TreeMap<Long,File>();
+        String[] names = dir.list();
+        if (names != null) {
+            for (String n : names) {
+                long start = startOf(n);
+                if (start >= 0)
+                    found.put(start, new File(dir, n));
+            }
+        }
+        for (Map.Entry<Long,File> e : found.entrySet()) {
+            if (!segments.isEmpty() && last().end != e.getKey()) {
+                stray.add(e.getValue());
+                continue;
+            }
+            segments.add(open(e.getValue(), e.getKey()));
+        }
+    }
+
+    /* the LSN a segment file name stands for, or -1 if it is not one */
+    private long startOf(String fileName) {
+        if (fileName.length() != name.length() + 17 || !fileName.startsWith(name + "."))
+            return -1;
+        try {
+            return Long.parseLong(fileName.substring(name.length() + 1), 16);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private Segment open(File f, long start) throws IOException {
+        FileChannel ch = new RandomAccessFile(f, "rw").getChannel();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (ch.read(header, header.position()) < 0)
+                break;
+        }
+        header.flip();
+        if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getLong() != start) {
+            ch.close();
+            throw new IOException("bad log segment header in " + f);
+        }
+        long end = start + Math.max(0, ch.size() - HEADER_SIZE);
+        // it may have been written with another segment size
+        return new Segment(f, ch, start, end, Math.max(end - start, segmentSize - HEADER_SIZE));
+    }
+
+    private Segment create(long start) throws IOException {
+        File f = new File(dir, String.format("%s.%016x", name, start));
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.setLength(0);
+        FileChannel ch = raf.getChannel();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putLong(start);
+        header.flip();
+        while (header.hasRemaining())
+            ch.write(header, header.position());
+        Segment s = new Segment(f, ch, start, start, segmentSize - HEADER_SIZE);
+        segments.add(s);
+        return s;
+    }
+
+    private Segment last() {
+        return segments.get(segments.size() - 1);
+    }
+
+    boolean isEmpty() {
+        return segments.isEmpty();
+    }
+
+    /** @return the LSN of the first byte of the log. */
+    long first() {
+        return segments.get(0).start;
+    }
+
+    /** @return the LSN just past the last byte of the log. */
+    long end() {
+        return last().end;
+    }
+
+    /** @return the number of segment files of the log. */
+    int size() {
+        return segments.size();
+    }
+
+    /**
+     * Returns the segment holding a byte of the log, found by binary search
+     * on the first LSN of each segment.
+     */
+    Segment segmentFor(long lsn) {
+        int lo = 0;
+        int hi = segments.size() - 1;
+        if (hi < 0 || lsn < segments.get(0).start)
+            throw new IllegalArgumentException("LSN " + lsn + " is not in the log any more");
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (segments.get(mid).start <= lsn)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        return segments.get(lo);
+    }
+
+    /**
+     * Drop every segment and start an empty log at an LSN.
+     */
+    void reset(long start) throws IOException {
+        for (Segment s : segments) {
+            s.ch.close();
+            s.file.delete();
+        }
+        segments.clear();
+        for (File f : stray)
+            f.delete();
+        stray.clear();
+        create(start);
+    }
+
+    /**
+     * Write bytes of the log from src, starting at LSN lsn, up to the end of
+     * the segment they start in. A segment is added when the last one is
+     * full.
+     *
+     * @return the number of bytes written
+     */
+    int write(ByteBuffer src, long lsn) throws IOException {
+        Segment s = segmentFor(lsn);
+        if (lsn - s.start >= s.capacity)
+            s = create(lsn);
+        int n = (int) Math.min(src.remaining(), s.capacity - (lsn - s.start));
+        ByteBuffer part = src.duplicate();
+        part.limit(part.position() + n);
+        long pos = HEADER_SIZE + (lsn - s.start);
+        while (part.hasRemaining())
+            pos += s.ch.write(part, pos);
+        src.position(src.position() + n);
+        s.end = Math.max(s.end, lsn + n);
+        return n;
+    }
+
+    /**
+     * Read bytes of the log into dst, starting at LSN lsn, from the segment
+     * they start in.
+     *
+     * @return the number of bytes read, or -1 at the end of the log
+     */
+    int read(ByteBuffer dst, long lsn) throws IOException {
+        if (lsn >= end())
+            return -1;
+        Segment s = segmentFor(lsn);
+        ByteBuffer part = dst.duplicate();
+        part.limit(part.position() + (int) Math.min(dst.remaining(), s.end - lsn));
+        int n = s.ch.read(part, HEADER_SIZE + (lsn - s.start));
+        if (n > 0)
+            dst.position(dst.position() + n);
+        return n;
+    }
+
+    /** @return the segments with bytes not forced to disk yet. */
+    List<Segment> unforced() {
+        ArrayList<Segment> l = new ArrayList<Segment>();
+        for (Segment s : segments) {
+            if (s.needsForce())
+                l.add(s);
+        }
+        return l;
+    }
+
+    /** Force every byte written to disk. */
+    void force() throws IOException {
+        for (Segment s : unforced())
+            s.force();
+    }
+
+    /**
+     * Cut off the end of the log from an LSN on.
+     */
+    void setEnd(long lsn) throws IOException {
+        Segment s = segmentFor(lsn);
+        s.ch.truncate(HEADER_SIZE + (lsn - s.start));
+        s.end = lsn;
+        while (last() != s) {
+            Segment dropped = segments.remove(segments.size() - 1);
+            dropped.ch.close();
+            dropped.file.delete();
+        }
+        for (File f : stray)
+            f.delete();
+        stray.clear();
+    }
+
+    /**
+     * Drop the segments that only hold bytes before an LSN, which must be
+     * on disk. The last segment is always kept.
+     *
+     * @return the files of the dropped segments, to dispose of
+     */
+    List<File> dropBefore(long lsn) throws IOException {
+        ArrayList<File> dropped = new ArrayList<File>();
+        while (segments.size() > 1 && segments.get(0).end <= lsn) {
+            Segment s = segments.remove(0);
+            s.drop();
+            dropped.add(s.file);
+        }
+        return dropped;
+    }
+
+    /**
+     * Delete dropped segment files, compressing them into an archive
+     * directory first unless it is null.
+     */
+    static void dispose(List<File> files, File archiveDir) throws IOException {
+        byte[] buf = new byte[1 << 16];
+        for (File f : files) {
+            if (archiveDir != null) {
+                File gz = new File(archiveDir, f.getName() + ".gz");
+                InputStream in = new FileInputStream(f);
+                try {
+                    OutputStream out = new GZIPOutputStream(new FileOutputStream(gz), buf.length);
+                    try {
+                        int n;
+                        while ((n = in.read(buf)) > 0)
+                            out.write(buf, 0, n);
+                    } finally {
+                        out.close();
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            f.delete();
+        }
+    }
+
+    void close() throws IOException {
+        for (Segment s : segments)
+            s.ch.close();
+    }
+}
@@ -0,0 +1,29 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Evicts the least recently used page first.
+ */
+public class LruEvictionPolicy implements EvictionPolicy {
+
+    /* access-ordered: iteration goes from least to most recently used */
+    private final LinkedHashMap<PageId, Boolean> pages =
+            new LinkedHashMap<PageId, Boolean>(16, 0.75f, true);
+
+    public void pageAdded(PageId pid) {
+        pages.put(pid, Boolean.TRUE);
+    }
+
+    public void pageAccessed(PageId pid) {
+        pages.get(pid);
+    }
+
+    public void pageRemoved(PageId pid) {
+        pages.remove(pid);
+    }
+
+    public Iterator<PageId> evictionCandidates() {
+        return Collections.unmodifiableSet(pages.keySet()).iterator();
+    }
+}
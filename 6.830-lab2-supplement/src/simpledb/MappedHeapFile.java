@@ -0,0 +1,102 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * MappedHeapFile is a HeapFile whose pages are read through a read-only
+ * memory mapping of the underlying file instead of explicit read calls.
+ * HeapPages are built directly on slices of the mapping, so a page read
+ * costs no system call and no copy; a page is only copied when it is first
+ * changed. It is meant for read-mostly tables; select it with the <code>mmap</code> annotation
+ * in the catalog file (see {@link Catalog#loadSchema}).
+ * <p>
+ * A single MappedByteBuffer can address at most 2 GB, so the file is
+ * mapped in segments of SEGMENT_SIZE bytes. Segments are mapped lazily on
+ * first access, and a trailing segment is remapped when the file has grown
+ * past it.
+ *
+ * @see HeapFile
+ * @see HeapPage#HeapPage(HeapPageId, ByteBuffer)
+ */
+public class MappedHeapFile extends HeapFile {
+
+    /** Bytes per mapped segment; a whole number of pages. */
+    static final long SEGMENT_SIZE = 1L << 30;
+
+    private MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+    /**
+     * Constructs a memory-mapped heap file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     */
+    public MappedHeapFile(File f, TupleDesc td) {
+        super(f, td);
+    }
+
+    /**
+     * Constructs a memory-mapped heap file whose id and size are already
+     * known.
+     *
+     * @see HeapFile#HeapFile(File, TupleDesc, int, int)
+     */
+    public MappedHeapFile(File f, TupleDesc td, int id, int numPages) {
+        super(f, td, id, numPages);
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        HeapPageId hpid = (HeapPageId)pid;
+        int pgNo        = hpid.pageNumber();
+        long position = (long)pgNo * BufferPool.getPageSize();
+        try {
+            getChannel();
+            if (pgNo < 0 || pgNo >= numPages()) {
+                throw new IllegalArgumentException("page " + pgNo + " does not exist in " + getFile());
+            }
+
+            int offset = (int)(position % SEGMENT_SIZE);
+            MappedByteBuffer segment = getSegment((int)(position / SEGMENT_SIZE),
+                    offset + BufferPool.getPageSize());
+            if (segment == null) {
+                // the page lies beyond the end of the file on disk
+                return super.readPage(pid);
+            }
+
+            ByteBuffer slice = segment.duplicate();
+            slice.position(offset);
+            slice.limit(offset + BufferPool.getPageSize());
+            return new HeapPage(hpid, slice.slice());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns a mapping of the given segment that covers at least minLimit
+     * bytes, mapping it on first use, or null if the file is too short.
+     */
+    private synchronized MappedByteBuffer getSegment(int index, int minLimit) throws IOException {
+        if (index >= segments.length) {
+            MappedByteBuffer[] grown = new MappedByteBuffer[index + 1];
+            System.arraycopy(segments, 0, grown, 0, segments.length);
+            segments = grown;
+        }
+
+        if (segments[index] == null || segments[index].limit() < minLimit) {
+            FileChannel ch = getChannel();
+            long start = index * SEGMENT_SIZE;
+            long size  = Math.min(SEGMENT_SIZE, ch.size() - start);
+            if (size < minLimit) {
+                return null;
+            }
+            segments[index] = ch.map(FileChannel.MapMode.READ_ONLY, start, size);
+        }
+        return segments[index];
+    }
+}
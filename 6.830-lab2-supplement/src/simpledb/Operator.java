@@ -4,8 +4,13 @@ import java.util.NoSuchElementException;
 
 /** Abstract class for implementing operators. It handles <code>close</code>, <code>next</code> and
 <code>hasNext</code>. Subclasses only need to implement <code>open</code> and
-<code>readNext</code>. */
-public abstract class Operator implements DbIterator {
+<code>readNext</code>.
+<p>
+Operators can also be read a batch at a time. By default batches are built
+from <code>fetchNext</code>; an operator that works on whole batches
+overrides <code>fetchNextBatch</code> instead and implements
+<code>fetchNext</code> with <code>nextFromBatch</code>. */
+public abstract class Operator implements BatchDbIterator {
     public boolean hasNext() throws DbException, TransactionAbortedException {
         if (next == null) next = fetchNext();
         return next != null;
@@ -23,19 +28,70 @@ public abstract class Operator implements DbIterator {
         return result;
     }
 
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (next == null && (batch == null || batchPos == batch.size())) {
+            batch = null;
+            return fetchNextBatch();
+        }
+
+        // hand out what was already read through next() first
+        TupleBatch result = new TupleBatch(getTupleDesc());
+        while (!result.isFull()
+                && (next != null || (batch != null && batchPos < batch.size()))) {
+            result.addTuple(next());
+        }
+        return result;
+    }
+
     /** Returns the next Tuple in the iterator, or null if the iteration is
     finished. Operator uses this method to implement both
     <code>next</code> and <code>hasNext</code>.
     @return the next Tuple in the iterator, or null if the iteration is finished. */
     protected abstract Tuple fetchNext() throws DbException, TransactionAbortedException;
 
+    /** Returns the next batch of tuples, or null if the iteration is
+    finished. Operator uses this method to implement <code>nextBatch</code>;
+    this implementation collects tuples from <code>fetchNext</code>.
+    @return a batch holding at least one tuple, or null if the iteration is finished. */
+    protected TupleBatch fetchNextBatch() throws DbException, TransactionAbortedException {
+        TupleBatch result = null;
+        Tuple t;
+        while ((result == null || !result.isFull()) && (t = fetchNext()) != null) {
+            if (result == null) result = new TupleBatch(getTupleDesc());
+            result.addTuple(t);
+        }
+        return result;
+    }
+
+    /** Returns the next Tuple of the batches produced by
+    <code>fetchNextBatch</code>, or null if the iteration is finished.
+    Operators that override <code>fetchNextBatch</code> can implement
+    <code>fetchNext</code> with this method. */
+    protected Tuple nextFromBatch() throws DbException, TransactionAbortedException {
+        while (batch == null || batchPos == batch.size()) {
+            batch = fetchNextBatch();
+            batchPos = 0;
+            if (batch == null) return null;
+        }
+        return batch.getTuple(batchPos++);
+    }
+
+    /** Forgets any tuples read ahead of the caller, e.g. when the
+    operator is rewound. */
+    protected void discardBuffered() {
+        next = null;
+        batch = null;
+    }
+
     /** Closes this iterator. If overridden by a subclass, they should call
      super.close() in order for Operator's internal state to be
     consistent. */
     public void close() {
         // Ensures that a future call to next() will fail
-        next = null;
+        discardBuffered();
     }
 
     private Tuple next = null;
+    private transient TupleBatch batch = null;
+    private transient int batchPos = 0;
 }
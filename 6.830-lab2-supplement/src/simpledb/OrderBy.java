@@ -34,17 +34,21 @@ public class OrderBy extends Operator {
         throws DbException, NoSuchElementException, TransactionAbortedException {
         child.open();
         //load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple)child.next());
+        TupleBatch batch;
+        while ((batch = TupleBatch.fetch(child)) != null)
+            for (int i = 0; i < batch.size(); i++)
+                childTups.add(batch.getTuple(i));
         Collections.sort(childTups, new TupleComparator(orderByField, asc));
         it = childTups.iterator();
     }
 
     public void close() {
+        super.close();
         it = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        discardBuffered();
         it = childTups.iterator();
     }
 
@@ -61,6 +65,20 @@ public class OrderBy extends Operator {
         } else
             return null;
     }
+
+    /**
+     * Operator.fetchNextBatch implementation.
+     * Returns the sorted tuples a batch at a time
+     */
+    protected TupleBatch fetchNextBatch()
+        throws NoSuchElementException, TransactionAbortedException, DbException {
+        if (it == null || !it.hasNext())
+            return null;
+        TupleBatch batch = new TupleBatch(td);
+        while (!batch.isFull() && it.hasNext())
+            batch.addTuple(it.next());
+        return batch;
+    }
 }
 
  class TupleComparator implements Comparator<Tuple> {
@@ -0,0 +1,23 @@
+package simpledb;
+
+import java.io.IOException;
+
+/**
+ * PageCodec writes the ids of one kind of page into log records and
+ * builds pages of that kind back from them, with direct constructor calls.
+ * LogFile keeps a codec for every kind of page it can log, under a small
+ * integer tag that it writes ahead of every page id.
+ *
+ * @see LogFile#registerPageCodec
+ */
+interface PageCodec {
+
+    /** Append a page id to a log record. */
+    void writeId(PageId pid, LogBuffer out) throws IOException;
+
+    /** Read back a page id written by writeId. */
+    PageId readId(LogReader in) throws IOException;
+
+    /** @return a page with the given id, holding data */
+    Page newPage(PageId pid, byte[] data) throws IOException;
+}
@@ -9,6 +9,10 @@ public class Predicate implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
+    private final int field;
+    private final Op op;
+    private final Field operand;
+
     /** Constants used for return codes in Field.compare */
     public enum Op implements Serializable {
         EQUALS, GREATER_THAN, LESS_THAN, LESS_THAN_OR_EQ, GREATER_THAN_OR_EQ, LIKE, NOT_EQUALS;
@@ -56,6 +60,9 @@ public class Predicate implements Serializable {
      */
     public Predicate(int field, Op op, Field operand) {
         // some code goes here
+        this.field   = field;
+        this.op      = op;
+        this.operand = operand;
     }
 
     /**
@@ -64,7 +71,7 @@ public class Predicate implements Serializable {
     public int getField()
     {
         // some code goes here
-        return -1;
+        return this.field;
     }
 
     /**
@@ -73,7 +80,7 @@ public class Predicate implements Serializable {
     public Op getOp()
     {
         // some code goes here
-        return null;
+        return this.op;
     }
     
     /**
@@ -82,7 +89,7 @@ public class Predicate implements Serializable {
     public Field getOperand()
     {
         // some code goes here
-        return null;
+        return this.operand;
     }
     
     /**
@@ -97,7 +104,38 @@ public class Predicate implements Serializable {
      */
     public boolean filter(Tuple t) {
         // some code goes here
-        return false;
+        return t.getField(this.field).compare(this.op, this.operand);
+    }
+
+    /**
+     * Applies the predicate to every selected row of a batch, leaving only
+     * the rows for which it is true selected. Integer columns are compared
+     * without creating any Field.
+     *
+     * @param batch
+     *            The batch to filter
+     */
+    public void filter(TupleBatch batch) {
+        int[] selected = new int[batch.size()];
+        int n = 0;
+        if (batch.getTupleDesc().getFieldType(this.field) == Type.INT_TYPE
+                && this.operand instanceof IntField) {
+            int value = ((IntField) this.operand).getValue();
+            for (int i = 0; i < batch.size(); i++) {
+                int row = batch.row(i);
+                if (IntField.compare(this.op, batch.getInt(this.field, row), value)) {
+                    selected[n++] = row;
+                }
+            }
+        } else {
+            for (int i = 0; i < batch.size(); i++) {
+                int row = batch.row(i);
+                if (batch.getField(this.field, row).compare(this.op, this.operand)) {
+                    selected[n++] = row;
+                }
+            }
+        }
+        batch.setSelection(selected, n);
     }
 
     /**
@@ -106,6 +144,6 @@ public class Predicate implements Serializable {
      */
     public String toString() {
         // some code goes here
-        return "";
+        return "f = " + this.field + " op = " + this.op + " operand = " + this.operand;
     }
 }
@@ -40,10 +40,12 @@ public class Project extends Operator {
     }
 
     public void close() {
+        super.close();
         child.close();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        discardBuffered();
         child.rewind();
     }
 
@@ -54,15 +56,24 @@ public class Project extends Operator {
      */
     protected Tuple fetchNext()
         throws NoSuchElementException, TransactionAbortedException, DbException {
-        while (child.hasNext()) {
-            Tuple t = child.next();
-            Tuple newTuple = new Tuple(td);
-            newTuple.setRecordId(t.getRecordId());
-            for (int i = 0; i < td.numFields(); i++) {
-                newTuple.setField(i, t.getField(outFieldIds.get(i)));
-            }
-            return newTuple;
+        return nextFromBatch();
+    }
+
+    /**
+     * Operator.fetchNextBatch implementation.
+     * Projects whole batches from the child operator; the projected
+     * columns are shared with the child's batch, not copied.
+     */
+    protected TupleBatch fetchNextBatch()
+        throws NoSuchElementException, TransactionAbortedException, DbException {
+        TupleBatch batch = TupleBatch.fetch(child);
+        if (batch == null) {
+            return null;
+        }
+        int[] columns = new int[outFieldIds.size()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = outFieldIds.get(i);
         }
-        return null;
+        return batch.project(columns, td);
     }
 }
@@ -7,7 +7,7 @@ import java.util.*;
  * each tuple of a table in no particular order (e.g., as they are laid out on
  * disk).
  */
-public class SeqScan implements DbIterator {
+public class SeqScan implements BatchDbIterator {
 
     private static final long serialVersionUID = 1L;
 
@@ -129,6 +129,22 @@ public class SeqScan implements DbIterator {
         return this.iterator.next();
     }
 
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if(this.opened == false){
+            throw new IllegalStateException();
+        }
+
+        if(! this.iterator.hasNext()){
+            return null;
+        }
+
+        TupleBatch batch = new TupleBatch(this.getTupleDesc());
+        while(! batch.isFull() && this.iterator.hasNext()){
+            batch.addTuple(this.iterator.next());
+        }
+        return batch;
+    }
+
     public void close() {
         // some code goes here
         this.opened = false;
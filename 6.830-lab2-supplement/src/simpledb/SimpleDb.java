@@ -67,6 +67,35 @@ public class SimpleDb {
                it.close();
             }
         }
+        else if (args[0].equals("catalog")) {
+            // compile a text schema into a binary catalog
+            if (args.length != 3) {
+                System.err.println("Usage: catalog <schema file> <binary catalog file>");
+                return;
+            }
+            Database.getCatalog().loadSchema(args[1]);
+            Database.getCatalog().saveCatalog(args[2]);
+        }
+        else if (args[0].equals("load")) {
+            // bulk load a text file into a table declared in a catalog
+            if (args.length < 4 || args.length > 5) {
+                System.err.println("Usage: load <catalog file> <table name> <text file> [separator]");
+                return;
+            }
+            Catalog catalog = Database.getCatalog();
+            catalog.loadSchema(args[1]);
+            int tableId = catalog.getTableId(args[2]);
+            DbFile table = catalog.getDatabaseFile(tableId);
+            if (!(table instanceof HeapFile)) {
+                System.err.println("Table " + args[2] + " is not stored in a heap file");
+                return;
+            }
+            char fieldSeparator = (args.length == 5) ? args[4].charAt(0) : ',';
+            HeapFile loaded = BulkLoader.loadText(new File(args[3]), fieldSeparator,
+                    ((HeapFile)table).getFile(), table.getTupleDesc(), args[2],
+                    catalog.getPrimaryKey(tableId));
+            System.out.println("Loaded " + loaded.numPages() + " pages into " + args[2]);
+        }
         else if (args[0].equals("parser")) {
             // Strip the first argument and call the parser
             String[] newargs = new String[args.length-1];
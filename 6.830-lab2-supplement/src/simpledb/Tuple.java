@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
@@ -8,11 +9,21 @@ import java.util.NoSuchElementException;
  * Tuple maintains information about the contents of a tuple. Tuples have a
  * specified schema specified by a TupleDesc object and contain Field objects
  * with the data for each field.
+ * <p>
+ * Internally, integer fields are kept in a primitive array and string fields
+ * in a copy of their on-disk bytes; Field objects are only created, and then
+ * cached, when {@link #getField} asks for them. Code on a hot path can read
+ * integer fields with {@link #getInt} without allocating anything.
  */
 public class Tuple implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
+    int[] ints;
+    /* the tuple in its on-disk format, when it was read from a page that
+     * has string fields; string fields are decoded from here */
+    byte[] raw;
+    /* fields that were set or asked for, allocated on first use */
     Field[] fields;
     TupleDesc td;
     RecordId rid;
@@ -30,20 +41,8 @@ public class Tuple implements Serializable {
             return ;
         }
 
-        this.fields = new Field[td.numFields()];
+        this.ints = new int[td.numFields()];
         this.td = td;
-
-        for(int i = 0; i < td.numFields(); i++){
-            if(td.getFieldType(i) == Type.INT_TYPE){
-                this.fields[i] = new IntField(0);
-            }
-            else if(td.getFieldType(i) == Type.STRING_TYPE){
-                this.fields[i] = new StringField("", 0);
-            }
-            else{
-                throw new NoSuchElementException();
-            }
-        }
     }
 
     /**
@@ -88,6 +87,12 @@ public class Tuple implements Serializable {
             return ;
         }
 
+        if (f instanceof IntField) {
+            this.ints[i] = ((IntField) f).getValue();
+        }
+        if (this.fields == null) {
+            this.fields = new Field[td.numFields()];
+        }
         this.fields[i] = f;
     }
 
@@ -104,7 +109,83 @@ public class Tuple implements Serializable {
             return null;
         }
 
-        return this.fields[i];
+        if (this.fields != null && this.fields[i] != null) {
+            return this.fields[i];
+        }
+
+        Field f;
+        if (td.getFieldType(i) == Type.INT_TYPE) {
+            f = new IntField(this.ints[i]);
+        } else if (this.raw != null) {
+            try {
+                f = Type.STRING_TYPE.parse(ByteBuffer.wrap(this.raw,
+                        td.getFieldOffset(i), Type.STRING_TYPE.getLen()));
+            } catch (java.text.ParseException e) {
+                throw new NoSuchElementException("parsing error!");
+            }
+        } else {
+            f = new StringField("", 0);
+        }
+        if (this.fields == null) {
+            this.fields = new Field[td.numFields()];
+        }
+        this.fields[i] = f;
+        return f;
+    }
+
+    /**
+     * @return the value of the ith field, which must be an integer field.
+     *         Unlike getField, this never allocates.
+     */
+    public int getInt(int i) {
+        return this.ints[i];
+    }
+
+    /**
+     * Change the value of the ith field, which must be an integer field.
+     */
+    public void setInt(int i, int value) {
+        this.ints[i] = value;
+        if (this.fields != null) {
+            this.fields[i] = null;
+        }
+    }
+
+    /**
+     * Fill in this tuple from its on-disk format, td.getSize() bytes of buf
+     * starting at offset. Integer fields are decoded right away; string
+     * fields are copied and decoded when they are first asked for.
+     */
+    void readFrom(byte[] buf, int offset) {
+        readFrom(ByteBuffer.wrap(buf), offset);
+    }
+
+    /**
+     * Fill in this tuple from its on-disk format, read with absolute gets
+     * from buf, e.g. a slice of a memory-mapped file, whose position is left
+     * unchanged.
+     *
+     * @see #readFrom(byte[], int)
+     */
+    void readFrom(ByteBuffer buf, int offset) {
+        boolean hasStrings = false;
+        int o = offset;
+        for (int j = 0; j < td.numFields(); j++) {
+            Type type = td.getFieldType(j);
+            if (type == Type.INT_TYPE) {
+                this.ints[j] = buf.getInt(o);
+            } else {
+                hasStrings = true;
+            }
+            o += type.getLen();
+        }
+        if (hasStrings) {
+            this.raw = new byte[td.getSize()];
+            ByteBuffer src = buf.duplicate();
+            src.position(offset);
+            src.get(this.raw);
+        }
+        this.fields = null;
     }
 
     /**
@@ -119,8 +200,8 @@ public class Tuple implements Serializable {
         // some code goes here
         //throw new UnsupportedOperationException("Implement this");
         String str = "";
-        for(int i = 0; i < this.fields.length; i++){
-            str += this.fields[i].toString() + "\t";
+        for(int i = 0; i < td.numFields(); i++){
+            str += this.getField(i).toString() + "\t";
         }
         str += "\n";
 
@@ -145,10 +226,9 @@ public class Tuple implements Serializable {
             }
 
             int i = cursor;
-            Object[] obj = fields;
             cursor += 1;
             lastRet = i;
-            return (Field) obj[lastRet];
+            return getField(lastRet);
         }
     }
     
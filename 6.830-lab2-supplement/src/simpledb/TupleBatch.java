@@ -0,0 +1,236 @@
+package simpledb;
+
+import java.util.NoSuchElementException;
+
+/**
+ * TupleBatch holds up to a fixed number of tuples with the same TupleDesc,
+ * stored by column: integer columns as int arrays, other columns as arrays
+ * of Fields. A selection vector lists which rows of the batch are still
+ * part of the result, so an operator like Filter can drop rows without
+ * moving any data.
+ * <p>
+ * The methods that take an index i refer to the ith selected row; the ones
+ * that take a row refer to a physical row, as returned by {@link #row}.
+ *
+ * @see BatchDbIterator
+ */
+public class TupleBatch {
+
+    /** Number of rows in a batch unless otherwise specified. */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final TupleDesc td;
+    private final int capacity;
+    private final int[][] ints;
+    private final Field[][] fields;
+    private final RecordId[] rids;
+    private int rows = 0;
+
+    /* null while every row is selected */
+    private int[] selection = null;
+    private int size = 0;
+
+    /**
+     * Create an empty batch of DEFAULT_CAPACITY rows.
+     *
+     * @param td the TupleDesc of the tuples in this batch
+     */
+    public TupleBatch(TupleDesc td) {
+        this(td, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create an empty batch.
+     *
+     * @param td the TupleDesc of the tuples in this batch
+     * @param capacity the maximum number of rows in this batch
+     */
+    public TupleBatch(TupleDesc td, int capacity) {
+        this.td = td;
+        this.capacity = capacity;
+        this.ints = new int[td.numFields()][];
+        this.fields = new Field[td.numFields()][];
+        for (int c = 0; c < td.numFields(); c++) {
+            if (td.getFieldType(c) == Type.INT_TYPE)
+                ints[c] = new int[capacity];
+            else
+                fields[c] = new Field[capacity];
+        }
+        this.rids = new RecordId[capacity];
+    }
+
+    /* a view of the given columns of another batch, see project() */
+    private TupleBatch(TupleDesc td, TupleBatch src, int[] columns) {
+        this.td = td;
+        this.capacity = src.capacity;
+        this.ints = new int[columns.length][];
+        this.fields = new Field[columns.length][];
+        for (int c = 0; c < columns.length; c++) {
+            ints[c] = src.ints[columns[c]];
+            fields[c] = src.fields[columns[c]];
+        }
+        this.rids = src.rids;
+        this.rows = src.rows;
+        this.selection = src.selection;
+        this.size = src.size;
+    }
+
+    /**
+     * Reads the next batch of tuples from any DbIterator: batches are taken
+     * straight from a BatchDbIterator, and assembled from next() calls
+     * otherwise.
+     *
+     * @return a batch holding at least one tuple, or null if it has no more
+     *   tuples.
+     */
+    public static TupleBatch fetch(DbIterator it)
+            throws DbException, TransactionAbortedException {
+        if (it instanceof BatchDbIterator)
+            return ((BatchDbIterator) it).nextBatch();
+
+        TupleBatch batch = null;
+        while ((batch == null || !batch.isFull()) && it.hasNext()) {
+            if (batch == null)
+                batch = new TupleBatch(it.getTupleDesc());
+            batch.addTuple(it.next());
+        }
+        return batch;
+    }
+
+    /**
+     * @return The TupleDesc of the tuples in this batch.
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the number of selected rows in this batch.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true if no more rows can be added to this batch.
+     */
+    public boolean isFull() {
+        return rows == capacity;
+    }
+
+    /**
+     * @return the physical row of the ith selected row.
+     */
+    public int row(int i) {
+        return selection == null ? i : selection[i];
+    }
+
+    /**
+     * @return the value of an integer column in the given physical row.
+     */
+    public int getInt(int column, int row) {
+        return ints[column][row];
+    }
+
+    /**
+     * @return the value of a column in the given physical row. A Field is
+     *   created for integer columns.
+     */
+    public Field getField(int column, int row) {
+        if (ints[column] != null)
+            return new IntField(ints[column][row]);
+        return fields[column][row];
+    }
+
+    /**
+     * Restrict the selected rows to the first n entries of rows, which must
+     * be physical rows of this batch in increasing order.
+     */
+    public void setSelection(int[] rows, int n) {
+        this.selection = rows;
+        this.size = n;
+    }
+
+    /**
+     * Append a tuple to this batch; it is selected.
+     */
+    public void addTuple(Tuple t) {
+        int r = newRow();
+        for (int c = 0; c < ints.length; c++) {
+            if (ints[c] != null)
+                ints[c][r] = t.getInt(c);
+            else
+                fields[c][r] = t.getField(c);
+        }
+        rids[r] = t.getRecordId();
+    }
+
+    /**
+     * Append the concatenation of a row of left and a row of right, whose
+     * TupleDescs must together make up the TupleDesc of this batch; it is
+     * selected.
+     */
+    public void addJoined(TupleBatch left, int leftRow, TupleBatch right, int rightRow) {
+        int r = newRow();
+        int n = left.ints.length;
+        for (int c = 0; c < n; c++)
+            copy(left, c, leftRow, c, r);
+        for (int c = 0; c < right.ints.length; c++)
+            copy(right, c, rightRow, n + c, r);
+    }
+
+    private void copy(TupleBatch src, int srcColumn, int srcRow, int column, int row) {
+        if (ints[column] != null)
+            ints[column][row] = src.ints[srcColumn][srcRow];
+        else
+            fields[column][row] = src.getField(srcColumn, srcRow);
+    }
+
+    private int newRow() {
+        if (isFull())
+            throw new IllegalStateException("batch is full");
+        int r = rows++;
+        if (selection != null) {
+            if (size == selection.length) {
+                int[] grown = new int[capacity];
+                System.arraycopy(selection, 0, grown, 0, size);
+                selection = grown;
+            }
+            selection[size] = r;
+        }
+        size++;
+        return r;
+    }
+
+    /**
+     * Returns a batch made of some of the columns of this one. The column
+     * data is shared, not copied, so neither batch should be added to
+     * afterwards.
+     *
+     * @param columns the columns of this batch to keep, in output order
+     * @param td the TupleDesc of the result
+     */
+    public TupleBatch project(int[] columns, TupleDesc td) {
+        return new TupleBatch(td, this, columns);
+    }
+
+    /**
+     * Builds a Tuple out of the ith selected row.
+     *
+     * @throws NoSuchElementException if i is out of range
+     */
+    public Tuple getTuple(int i) {
+        if (i < 0 || i >= size)
+            throw new NoSuchElementException();
+        int r = row(i);
+        Tuple t = new Tuple(td);
+        for (int c = 0; c < ints.length; c++) {
+            if (ints[c] != null)
+                t.setInt(c, ints[c][r]);
+            else
+                t.setField(c, fields[c][r]);
+        }
+        t.setRecordId(rids[r]);
+        return t;
+    }
+}
@@ -5,6 +5,10 @@ import java.util.*;
 
 /**
  * TupleDesc describes the schema of a tuple.
+ * <p>
+ * A TupleDesc never changes once built, so everything derived from it (the
+ * tuple size, the byte offset of each field, the field name index and the
+ * hash code) is computed once in the constructor.
  */
 public class TupleDesc implements Serializable {
 
@@ -38,8 +42,14 @@ public class TupleDesc implements Serializable {
     /*
     * Add by EOF.
     * */
-    private TDItem[] tdItems;
-    private int size = 0;
+    private final TDItem[] tdItems;
+    private final int size;
+
+    private final int byteSize;
+    private final int[] offsets;
+    /* first index of each non-null field name */
+    private final HashMap<String, Integer> nameToIndex;
+    private final int hash;
 
     private class Iter implements Iterator<TDItem>{
         int cursor  = 0;
@@ -83,20 +93,27 @@ public class TupleDesc implements Serializable {
      *            be null.
      */
     public TupleDesc(Type[] typeAr, String[] fieldAr) {
-        if(typeAr.length < 1){
-            /*
-            * throws Error or return directly
-            * */
-            return ;
-        }
-        else{
-            this.size = typeAr.length;
-            this.tdItems = new TDItem[this.size];
-            for(int i = 0; i < this.size; i++){
-                this.tdItems[i] = new TDItem(typeAr[i], fieldAr[i]);
+        /*
+        * an empty typeAr gives a TupleDesc with no fields
+        * */
+        this.size = typeAr.length;
+        this.tdItems = new TDItem[this.size];
+        this.offsets = new int[this.size];
+        this.nameToIndex = new HashMap<String, Integer>();
+
+        int offset = 0;
+        int hash = 1;
+        for(int i = 0; i < this.size; i++){
+            this.tdItems[i] = new TDItem(typeAr[i], fieldAr[i]);
+            this.offsets[i] = offset;
+            offset += typeAr[i].getLen();
+            hash = 31 * hash + typeAr[i].ordinal();
+            if(fieldAr[i] != null && !this.nameToIndex.containsKey(fieldAr[i])){
+                this.nameToIndex.put(fieldAr[i], i);
             }
         }
-
+        this.byteSize = offset;
+        this.hash = hash;
     }
 
     /**
@@ -108,24 +125,13 @@ public class TupleDesc implements Serializable {
      *            TupleDesc. It must contain at least one entry.
      */
     public TupleDesc(Type[] typeAr) {
+        this(typeAr, anonymousNames(typeAr.length));
+    }
 
-        if(typeAr.length < 1){
-            /*
-            * throws Error
-            * */
-            return ;
-        }
-
-        this.size = typeAr.length;
-
-        String[] fieldAr = new String[this.size];
-
-        this.tdItems = new TDItem[this.size];
-        for(int i = 0; i < this.size; i++){
-            fieldAr[i] = "";
-            this.tdItems[i] = new TDItem(typeAr[i], fieldAr[i]);
-        }
-
+    private static String[] anonymousNames(int n) {
+        String[] fieldAr = new String[n];
+        Arrays.fill(fieldAr, "");
+        return fieldAr;
     }
 
     /**
@@ -183,16 +189,11 @@ public class TupleDesc implements Serializable {
      */
     public int fieldNameToIndex(String name) throws NoSuchElementException {
         // some code goes here
-        String fieldName;
-        for(int i = 0; i < this.size; i++) {
-            fieldName = this.getFieldName(i);
-
-            if(fieldName.equals(name)){
-                return i;
-            }
+        Integer index = (name == null) ? null : this.nameToIndex.get(name);
+        if(index == null){
+            throw new NoSuchElementException();
         }
-
-        throw new NoSuchElementException();
+        return index;
     }
 
     /**
@@ -201,11 +202,21 @@ public class TupleDesc implements Serializable {
      */
     public int getSize() {
         // some code goes here
-        int length = 0;
-        for(int i = 0; i < this.size; i++){
-            length += this.getFieldType(i).getLen();
+        return this.byteSize;
+    }
+
+    /**
+     * @return the offset (in bytes) of the ith field within the on-disk
+     *         format of tuples corresponding to this TupleDesc.
+     * @throws NoSuchElementException
+     *             if i is not a valid field reference.
+     */
+    public int getFieldOffset(int i) throws NoSuchElementException {
+        if (i >= this.size){
+            throw new NoSuchElementException();
         }
-        return length;
+
+        return this.offsets[i];
     }
 
     /**
@@ -251,7 +262,7 @@ public class TupleDesc implements Serializable {
         }
 
         TupleDesc td = (TupleDesc)o;
-        if (td.size != this.size){
+        if (td.size != this.size || td.hash != this.hash){
             return false;
         }
         for(int i = 0; i < size; i++){
@@ -266,10 +277,7 @@ public class TupleDesc implements Serializable {
     public int hashCode() {
         // If you want to use TupleDesc as keys for HashMap, implement this so
         // that equal objects have equals hashCode() results
-        return this.toString().hashCode();
-        //throw new UnsupportedOperationException("unimplemented");
-
-
+        return this.hash;
     }
 
     /**
@@ -0,0 +1,88 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The full 2Q policy of Johnson and Shasha. Pages seen for the first time
+ * enter a FIFO probation queue (A1in). Pages evicted from A1in are
+ * remembered, without their data, in a ghost queue (A1out); a page that is
+ * read again while it is remembered there has proved it is reused and goes
+ * to the main LRU queue (Am). Pages touched only once, such as those of a
+ * large scan, therefore never push the hot set out of Am.
+ */
+public class TwoQueueEvictionPolicy implements EvictionPolicy {
+
+    private final int maxIn;
+    private final int maxOut;
+
+    /* FIFO of resident pages on probation */
+    private final LinkedHashMap<PageId, Boolean> in = new LinkedHashMap<PageId, Boolean>();
+    /* FIFO of ids recently evicted from A1in */
+    private final LinkedHashMap<PageId, Boolean> out = new LinkedHashMap<PageId, Boolean>();
+    /* access-ordered LRU of resident hot pages */
+    private final LinkedHashMap<PageId, Boolean> main =
+            new LinkedHashMap<PageId, Boolean>(16, 0.75f, true);
+
+    /**
+     * @param numPages the number of pages in the buffer pool; A1in is sized
+     *   to a quarter and A1out to half of it, as suggested in the paper.
+     */
+    public TwoQueueEvictionPolicy(int numPages) {
+        this.maxIn = Math.max(numPages / 4, 1);
+        this.maxOut = Math.max(numPages / 2, 1);
+    }
+
+    public void pageAdded(PageId pid) {
+        if (in.containsKey(pid) || main.containsKey(pid)) {
+            pageAccessed(pid);
+        } else if (out.remove(pid) != null) {
+            main.put(pid, Boolean.TRUE);
+        } else {
+            in.put(pid, Boolean.TRUE);
+        }
+    }
+
+    public void pageAccessed(PageId pid) {
+        // hits in A1in are deliberately ignored: correlated references
+        // right after the first one say nothing about reuse
+        main.get(pid);
+    }
+
+    public void pageRemoved(PageId pid) {
+        if (in.remove(pid) != null) {
+            out.put(pid, Boolean.TRUE);
+            if (out.size() > maxOut) {
+                Iterator<PageId> oldest = out.keySet().iterator();
+                oldest.next();
+                oldest.remove();
+            }
+        } else {
+            main.remove(pid);
+        }
+    }
+
+    public Iterator<PageId> evictionCandidates() {
+        final Iterator<PageId> first, second;
+        if (in.size() > maxIn || main.isEmpty()) {
+            first = in.keySet().iterator();
+            second = main.keySet().iterator();
+        } else {
+            first = main.keySet().iterator();
+            second = in.keySet().iterator();
+        }
+
+        return new Iterator<PageId>() {
+            public boolean hasNext() {
+                return first.hasNext() || second.hasNext();
+            }
+
+            public PageId next() {
+                return first.hasNext() ? first.next() : second.next();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
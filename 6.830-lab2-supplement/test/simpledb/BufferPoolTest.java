@@ -0,0 +1,317 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BufferPoolTest extends SimpleDbTestBase {
+
+    /** Counts readPage calls and makes each of them slow. */
+    static class SlowHeapFile extends HeapFile {
+        final AtomicInteger reads = new AtomicInteger(0);
+
+        SlowHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            reads.incrementAndGet();
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return super.readPage(pid);
+        }
+    }
+
+    /** Makes each writePage call slow, with many writes to the channel. */
+    static class SlowWriteHeapFile extends HeapFile {
+        final AtomicInteger writes = new AtomicInteger(0);
+
+        SlowWriteHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public void writePage(Page page) throws IOException {
+            writes.incrementAndGet();
+            for (int i = 0; i < 500; i++)
+                super.writePage(page);
+        }
+    }
+
+    /** Pauses after each writePage call, before the caller goes on. */
+    static class LingeringWriteHeapFile extends HeapFile {
+        LingeringWriteHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public void writePage(Page page) throws IOException {
+            super.writePage(page);
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Threads missing on the same page at the same time share one disk read
+     */
+    @Test
+    public void concurrentMissesReadOnce() throws Exception {
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * 4, 1 << 16, null, null);
+        final SlowHeapFile hf = new SlowHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        final BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        final int threads = 8;
+        final CyclicBarrier start = new CyclicBarrier(threads);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Page>> results = new ArrayList<Future<Page>>();
+        for (int i = 0; i < threads; i++) {
+            results.add(pool.submit(new Callable<Page>() {
+                public Page call() throws Exception {
+                    start.await();
+                    return bp.getPage(null, new HeapPageId(hf.getId(), 1), Permissions.READ_ONLY);
+                }
+            }));
+        }
+        Page first = results.get(0).get();
+        for (Future<Page> r : results) {
+            assertSame(first, r.get());
+        }
+        pool.shutdown();
+        assertEquals(1, hf.reads.get());
+    }
+
+    /**
+     * Concurrent scans through a small pool never exceed its capacity and
+     * see every page
+     */
+    @Test
+    public void concurrentScansStayBounded() throws Exception {
+        final HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 40, null, null);
+        final BufferPool bp = new BufferPool(16, "clock", false);
+
+        final int threads = 4;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int t = 0; t < threads; t++) {
+            results.add(pool.submit(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    int seen = 0;
+                    for (int i = 0; i < hf.numPages(); i++) {
+                        Page p = bp.getPage(null, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+                        assertEquals(i, p.getId().pageNumber());
+                        assertTrue(bp.pool.size() <= 16);
+                        seen++;
+                    }
+                    return seen;
+                }
+            }));
+        }
+        for (Future<Integer> r : results) {
+            assertEquals(40, r.get().intValue());
+        }
+        pool.shutdown();
+    }
+
+    /**
+     * A scan reads ahead, and the pages it prefetched are later hit
+     */
+    @Test
+    public void scanReadsAhead() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 20, null, tuples);
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        SystemTestUtil.matchTuples(hf, tuples);
+
+        assertTrue(bp.getPrefetchReads() + bp.getPrefetchHits() > 0);
+        assertTrue(bp.getPrefetchHits() <= bp.getPrefetchReads());
+        assertEquals(0, bp.getPrefetchWasted());
+        for (int i = 0; i < hf.numPages(); i++) {
+            assertTrue(bp.isCached(new HeapPageId(hf.getId(), i)));
+        }
+    }
+
+    /**
+     * The page writer of a STEAL pool makes dirty pages clean in the
+     * background, and is refused under NO STEAL
+     */
+    @Test
+    public void pageWriterCleansDirtyPages() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 8, null, null);
+        try {
+            new BufferPool(16, "lru", false).startPageWriter(1, 4);
+            fail("the page writer must not run under NO STEAL");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        BufferPool bp = new BufferPool(16, "lru", true);
+        TransactionId tid = new TransactionId();
+        List<HeapPage> dirty = new ArrayList<HeapPage>();
+        for (int i = 0; i < 8; i++) {
+            HeapPage p = (HeapPage) bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_WRITE);
+            p.deleteTuple(p.iterator().next());
+            p.markDirty(true, tid);
+            dirty.add(p);
+        }
+
+        bp.startPageWriter(1, 4);
+        try {
+            long deadline = System.currentTimeMillis() + 10000;
+            for (HeapPage p : dirty) {
+                while (p.isDirty() != null && System.currentTimeMillis() < deadline)
+                    Thread.sleep(1);
+                assertNull(p.isDirty());
+                assertArrayEquals(p.getPageData(), hf.readPage(p.getId()).getPageData());
+                assertTrue(bp.isCached(p.getId()));
+            }
+            assertEquals(8, bp.getBackgroundWrites());
+        } finally {
+            bp.stopPageWriter();
+        }
+    }
+
+    /**
+     * Stopping the page writer lets the round in progress end, rather than
+     * break the file it is writing to
+     */
+    @Test
+    public void stopPageWriterMidRound() throws Exception {
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * 2, 1 << 16, null, null);
+        SlowWriteHeapFile hf = new SlowWriteHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        BufferPool bp = new BufferPool(16, "lru", true);
+        TransactionId tid = new TransactionId();
+        HeapPage p = (HeapPage) bp.getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_WRITE);
+        p.deleteTuple(p.iterator().next());
+        p.markDirty(true, tid);
+
+        bp.startPageWriter(1, 1);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (hf.writes.get() == 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        bp.stopPageWriter();
+
+        assertEquals(1, bp.getBackgroundWrites());
+        assertNull(p.isDirty());
+        assertArrayEquals(p.getPageData(), hf.readPage(p.getId()).getPageData());
+    }
+
+    /**
+     * Tuples inserted while the pages are being written out all reach the
+     * disk once the transaction commits
+     */
+    @Test
+    public void flushRacesInserts() throws Exception {
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 0, 1 << 16, null, null);
+        HeapFile hf = new LingeringWriteHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        final BufferPool bp = Database.getBufferPool();
+        TransactionId tid = new TransactionId();
+        Database.getLogFile().logXactionBegin(tid);
+
+        final CountDownLatch done = new CountDownLatch(1);
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        Future<Integer> writer = pool.submit(new Callable<Integer>() {
+            public Integer call() throws Exception {
+                int writes = 0;
+                while (done.getCount() > 0)
+                    writes += bp.writeDirtyPages(16);
+                return writes;
+            }
+        });
+        pool.shutdown();
+
+        // keep inserting over many page writes
+        int inserted = 0;
+        try {
+            long start = bp.getBackgroundWrites();
+            while (bp.getBackgroundWrites() - start < 200) {
+                bp.insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] { inserted, -inserted }));
+                inserted++;
+            }
+        } finally {
+            done.countDown();
+        }
+        assertTrue(writer.get() > 0);
+        bp.transactionComplete(tid);
+
+        int stored = 0;
+        for (int i = 0; i < hf.numPages(); i++) {
+            Iterator<Tuple> it = ((HeapPage) hf.readPage(new HeapPageId(hf.getId(), i))).iterator();
+            for (; it.hasNext(); it.next())
+                stored++;
+        }
+        assertEquals(inserted, stored);
+    }
+
+    /**
+     * Tuples inserted while other queries keep evicting pages all reach the
+     * disk, rather than go with an evicted copy of their page
+     */
+    @Test
+    public void evictionRacesInserts() throws Exception {
+        final HeapFile scanned = SystemTestUtil.createRandomHeapFile(2, 504 * 40, null, null);
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        final BufferPool bp = Database.resetBufferPool(16);
+
+        final CountDownLatch done = new CountDownLatch(1);
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        Future<Void> scanner = pool.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                while (done.getCount() > 0) {
+                    for (int i = 0; i < scanned.numPages(); i++)
+                        bp.getPage(null, new HeapPageId(scanned.getId(), i), Permissions.READ_ONLY);
+                }
+                return null;
+            }
+        });
+        pool.shutdown();
+
+        // each insert commits, so the page it goes to is clean beforehand
+        int inserted = 504 * 2;
+        try {
+            for (int i = 0; i < inserted; i++) {
+                TransactionId tid = new TransactionId();
+                Database.getLogFile().logXactionBegin(tid);
+                bp.insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] { i, -i }));
+                bp.transactionComplete(tid);
+            }
+        } finally {
+            done.countDown();
+        }
+        scanner.get();
+
+        int stored = 0;
+        for (int i = 0; i < hf.numPages(); i++) {
+            Iterator<Tuple> it = ((HeapPage) hf.readPage(new HeapPageId(hf.getId(), i))).iterator();
+            for (; it.hasNext(); it.next())
+                stored++;
+        }
+        assertEquals(inserted, stored);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolTest.class);
+    }
+}
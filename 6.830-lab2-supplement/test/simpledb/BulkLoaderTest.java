@@ -0,0 +1,163 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.*;
+import java.util.*;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BulkLoaderTest extends SimpleDbTestBase {
+
+    /**
+     * Tuples loaded from an iterator are packed into full pages, and later
+     * inserts go to the last, partly filled page
+     */
+    @Test
+    public void load() throws Exception {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < 1100; i++) {
+            Tuple t = Utility.getHeapTuple(new int[] { i, -i });
+            tuples.add(t);
+            expected.add(SystemTestUtil.tupleToList(t));
+        }
+
+        File f = File.createTempFile("bulk", ".dat");
+        f.deleteOnExit();
+        HeapFile hf = BulkLoader.load(tuples.iterator(), f, Utility.getTupleDesc(2),
+                SystemTestUtil.getUUID(), "");
+        assertEquals(3, hf.numPages());
+        assertEquals(3 * BufferPool.getPageSize(), f.length());
+        SystemTestUtil.matchTuples(hf, expected);
+
+        TransactionId tid = new TransactionId();
+        Tuple t = Utility.getHeapTuple(new int[] { 0, 0 });
+        hf.insertTuple(tid, t);
+        assertEquals(3, hf.numPages());
+        assertEquals(2, t.getRecordId().getPageId().pageNumber());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Text input is parsed into the declared types, and malformed lines are
+     * reported
+     */
+    @Test
+    public void loadText() throws Exception {
+        File in = File.createTempFile("bulk", ".txt");
+        in.deleteOnExit();
+        Writer w = new FileWriter(in);
+        w.write("1|one\n\n2 | two\n");
+        w.close();
+
+        File f = File.createTempFile("bulk", ".dat");
+        f.deleteOnExit();
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE },
+                new String[] { "id", "name" });
+        HeapFile hf = BulkLoader.loadText(in, '|', f, td, "named", "id");
+        assertEquals(hf.getId(), Database.getCatalog().getTableId("named"));
+        assertEquals("id", Database.getCatalog().getPrimaryKey(hf.getId()));
+
+        DbFileIterator it = hf.iterator(new TransactionId());
+        it.open();
+        Tuple t = it.next();
+        assertEquals(1, t.getInt(0));
+        assertEquals(new StringField("one", Type.STRING_LEN), t.getField(1));
+        t = it.next();
+        assertEquals(2, t.getInt(0));
+        assertEquals(new StringField("two", Type.STRING_LEN), t.getField(1));
+        assertFalse(it.hasNext());
+        it.close();
+
+        w = new FileWriter(in);
+        w.write("1|one|uno\n");
+        w.close();
+        try {
+            BulkLoader.loadText(in, '|', f, td, "named", "id");
+            fail("expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Recovery does not redo the logged updates of a table onto the pages
+     * of the table loaded over it
+     */
+    @Test
+    public void reloadIsNotRedone() throws Exception {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < 10; i++)
+            tuples.add(Utility.getHeapTuple(new int[] { i, -i }));
+        File f = File.createTempFile("bulk", ".dat");
+        f.deleteOnExit();
+        String name = SystemTestUtil.getUUID();
+        HeapFile hf = BulkLoader.load(tuples.iterator(), f, Utility.getTupleDesc(2), name, "");
+
+        // a committed update of the first table, never written to its file
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage p = (HeapPage) hf.readPage(pid);
+        p.deleteTuple(p.iterator().next());
+        LogFile log = Database.getLogFile();
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logWrite(tid, p.getBeforeImage(), p);
+        log.logCommit(tid);
+
+        tuples.clear();
+        for (int i = 0; i < 20; i++)
+            tuples.add(Utility.getHeapTuple(new int[] { -i, i }));
+        HeapFile reloaded = BulkLoader.load(tuples.iterator(), f, Utility.getTupleDesc(2), name, "");
+        byte[] loaded = reloaded.readPage(pid).getPageData();
+
+        // crash, and recover from the same log
+        new LogFile(new File("log")).recover();
+        assertArrayEquals(loaded, reloaded.readPage(pid).getPageData());
+    }
+
+    /**
+     * Loading a new table takes no checkpoint, and loading a table again
+     * keeps the id it is registered under and drops its cached pages
+     */
+    @Test
+    public void reloadKeepsId() throws Exception {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < 10; i++)
+            tuples.add(Utility.getHeapTuple(new int[] { i, -i }));
+        File f = File.createTempFile("bulk", ".dat");
+        f.deleteOnExit();
+        String name = SystemTestUtil.getUUID();
+        int records = Database.getLogFile().getTotalRecords();
+        HeapFile hf = BulkLoader.load(tuples.iterator(), f, Utility.getTupleDesc(2), name, "");
+        assertEquals(records, Database.getLogFile().getTotalRecords());
+
+        // registered under an id other than the hash of its file name, as
+        // a catalog may do
+        int id = hf.getId() + 1;
+        HeapFile probed = new HeapFile(f, Utility.getTupleDesc(2), id, hf.numPages());
+        Database.getCatalog().addTable(probed, name);
+        HeapPageId pid = new HeapPageId(id, 0);
+        Database.getBufferPool().getPage(null, pid, Permissions.READ_ONLY);
+
+        tuples.clear();
+        for (int i = 0; i < 20; i++)
+            tuples.add(Utility.getHeapTuple(new int[] { -i, i }));
+        HeapFile reloaded = BulkLoader.load(tuples.iterator(), f, Utility.getTupleDesc(2), name, "");
+        assertEquals(id, reloaded.getId());
+        assertEquals(id, Database.getCatalog().getTableId(name));
+        assertSame(reloaded, Database.getCatalog().getDatabaseFile(id));
+        HeapPage p = (HeapPage) Database.getBufferPool().getPage(null, pid, Permissions.READ_ONLY);
+        assertEquals(HeapPage.slotsPerPage(Utility.getTupleDesc(2)) - 20, p.getNumEmptySlots());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BulkLoaderTest.class);
+    }
+}
@@ -67,6 +67,78 @@ public class CatalogTest extends SimpleDbTestBase {
         assertEquals(-1, f.getId());
     }
 
+    /**
+     * Unit test for Catalog.getTableName() and Catalog.tableIdIterator()
+     */
+    @Test public void getTableName() throws Exception {
+        assertEquals(name, Database.getCatalog().getTableName(-2));
+        assertEquals(null, Database.getCatalog().getTableName(-3));
+
+        java.util.Iterator<Integer> it = Database.getCatalog().tableIdIterator();
+        assertEquals(-1, it.next().intValue());
+        assertEquals(-2, it.next().intValue());
+        Assert.assertFalse(it.hasNext());
+    }
+
+    /**
+     * A table added under an existing name replaces the old one
+     */
+    @Test public void replaceTable() throws Exception {
+        for (int i = 0; i < 100; i++)
+            Database.getCatalog().addTable(new TestUtil.SkeletonFile(i, Utility.getTupleDesc(1)), "t" + i);
+        Database.getCatalog().addTable(new TestUtil.SkeletonFile(-3, Utility.getTupleDesc(3)), name);
+
+        assertEquals(-3, Database.getCatalog().getTableId(name));
+        assertEquals(null, Database.getCatalog().getDatabaseFile(-2));
+        assertEquals(Utility.getTupleDesc(3), Database.getCatalog().getTupleDesc(-3));
+        for (int i = 0; i < 100; i++)
+            assertEquals("t" + i, Database.getCatalog().getTableName(i));
+    }
+
+    /**
+     * Tables added one at a time, over many growths of the index, are all
+     * found, and an iterator taken before keeps to the tables it started with
+     */
+    @Test public void addManyTables() throws Exception {
+        java.util.Iterator<Integer> before = Database.getCatalog().tableIdIterator();
+        for (int i = 0; i < 10000; i++)
+            Database.getCatalog().addTable(new TestUtil.SkeletonFile(i, Utility.getTupleDesc(1)), "t" + i);
+
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i, Database.getCatalog().getTableId("t" + i));
+            assertEquals("t" + i, Database.getCatalog().getTableName(i));
+        }
+        assertEquals(-2, Database.getCatalog().getTableId(name));
+        int n = 0;
+        for (java.util.Iterator<Integer> it = Database.getCatalog().tableIdIterator(); it.hasNext(); it.next())
+            n++;
+        assertEquals(10002, n);
+        assertEquals(-1, before.next().intValue());
+        assertEquals(-2, before.next().intValue());
+        Assert.assertFalse(before.hasNext());
+    }
+
+    /**
+     * A catalog saved in binary form loads back with the same tables and ids
+     */
+    @Test public void saveAndLoadCatalog() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 1100, null, null);
+        String tableName = Database.getCatalog().getTableName(hf.getId());
+        java.io.File catalogFile = java.io.File.createTempFile("catalog", ".bin");
+        catalogFile.deleteOnExit();
+        Database.getCatalog().saveCatalog(catalogFile.getPath());
+
+        Catalog loaded = new Catalog();
+        loaded.loadSchema(catalogFile.getPath());
+        assertEquals(hf.getId(), loaded.getTableId(tableName));
+        assertEquals(hf.getTupleDesc(), loaded.getTupleDesc(hf.getId()));
+        HeapFile loadedFile = (HeapFile) loaded.getDatabaseFile(hf.getId());
+        assertEquals(hf.getFile().getAbsoluteFile(), loadedFile.getFile().getAbsoluteFile());
+        assertEquals(3, loadedFile.numPages());
+        // the skeleton tables have no file, so they are not saved
+        assertEquals(null, loaded.getDatabaseFile(-1));
+    }
+
     /**
      * JUnit suite target
      */
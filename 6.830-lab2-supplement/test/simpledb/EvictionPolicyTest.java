@@ -0,0 +1,142 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.*;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class EvictionPolicyTest extends SimpleDbTestBase {
+
+    private static PageId page(int n) {
+        return new HeapPageId(1, n);
+    }
+
+    private static PageId firstCandidate(EvictionPolicy policy) {
+        Iterator<PageId> it = policy.evictionCandidates();
+        assertTrue(it.hasNext());
+        return it.next();
+    }
+
+    /**
+     * LRU evicts the page that was used longest ago
+     */
+    @Test
+    public void lru() {
+        EvictionPolicy policy = new LruEvictionPolicy();
+        for (int i = 0; i < 3; i++)
+            policy.pageAdded(page(i));
+        policy.pageAccessed(page(0));
+        assertEquals(page(1), firstCandidate(policy));
+
+        policy.pageRemoved(page(1));
+        assertEquals(page(2), firstCandidate(policy));
+    }
+
+    /**
+     * CLOCK gives referenced pages a second chance
+     */
+    @Test
+    public void clock() {
+        EvictionPolicy policy = new ClockEvictionPolicy(3);
+        for (int i = 0; i < 3; i++)
+            policy.pageAdded(page(i));
+
+        // every bit is set: the first sweep clears them, the second picks 0
+        assertEquals(page(0), firstCandidate(policy));
+        policy.pageRemoved(page(0));
+        policy.pageAdded(page(3));
+        policy.pageAccessed(page(1));
+
+        // 1 was referenced again, 2 was not
+        assertEquals(page(2), firstCandidate(policy));
+    }
+
+    /**
+     * 2Q keeps pages that were reused out of the probation queue
+     */
+    @Test
+    public void twoQueue() {
+        EvictionPolicy policy = new TwoQueueEvictionPolicy(8);
+        policy.pageAdded(page(0));
+        policy.pageRemoved(page(0));
+        // 0 comes back while remembered in A1out: it is hot now
+        policy.pageAdded(page(0));
+
+        // a scan of once-touched pages only competes with itself
+        for (int i = 1; i <= 4; i++)
+            policy.pageAdded(page(i));
+        Iterator<PageId> it = policy.evictionCandidates();
+        for (int i = 1; i <= 4; i++)
+            assertEquals(page(i), it.next());
+        assertEquals(page(0), it.next());
+        assertFalse(it.hasNext());
+    }
+
+    /**
+     * The buffer pool never holds more than numPages pages, whatever the
+     * policy
+     */
+    @Test
+    public void poolIsBounded() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 10, null, null);
+        for (String name : new String[] { "lru", "clock", "2q" }) {
+            BufferPool bp = new BufferPool(4, name, false);
+            for (int round = 0; round < 2; round++) {
+                for (int i = 0; i < hf.numPages(); i++) {
+                    bp.getPage(null, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+                    assertTrue(bp.pool.size() <= 4);
+                }
+            }
+        }
+    }
+
+    /**
+     * Under NO STEAL, a pool full of dirty pages refuses to evict
+     */
+    @Test
+    public void noStealRefusesDirtyVictims() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, null);
+        BufferPool bp = new BufferPool(2, "lru", false);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 2; i++) {
+            Page p = bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_WRITE);
+            p.markDirty(true, tid);
+        }
+        try {
+            bp.getPage(tid, new HeapPageId(hf.getId(), 2), Permissions.READ_ONLY);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+    }
+
+    /**
+     * A sequential scan recycles its own pages instead of evicting pages
+     * read without the hint
+     */
+    @Test
+    public void scanKeepsHotPages() throws Exception {
+        HeapFile hot = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 504 * 40, null, null);
+        for (String name : new String[] { "lru", "clock", "2q" }) {
+            BufferPool bp = new BufferPool(8, name, false);
+            for (int i = 0; i < hot.numPages(); i++)
+                bp.getPage(null, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+            for (int i = 0; i < big.numPages(); i++)
+                bp.getPage(null, new HeapPageId(big.getId(), i), Permissions.READ_ONLY, true);
+            for (int i = 0; i < hot.numPages(); i++)
+                assertTrue(name, bp.pool.containsKey(new HeapPageId(hot.getId(), i)));
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictionPolicyTest.class);
+    }
+}
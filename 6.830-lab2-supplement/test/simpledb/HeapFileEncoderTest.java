@@ -0,0 +1,65 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.*;
+import java.util.*;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class HeapFileEncoderTest extends SimpleDbTestBase {
+
+    /**
+     * An input spanning several chunks is written out in order, with every
+     * page but the last one full
+     */
+    @Test
+    public void convertManyChunks() throws Exception {
+        int rows = 504 * (2 * HeapFileEncoder.CHUNK_PAGES + 3) + 7;
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, rows, null, tuples);
+        assertEquals(2 * HeapFileEncoder.CHUNK_PAGES + 4, hf.numPages());
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * Blank lines are skipped, and a line with missing fields is rejected
+     */
+    @Test
+    public void convertMalformed() throws Exception {
+        File in = File.createTempFile("table", ".txt");
+        in.deleteOnExit();
+        File out = File.createTempFile("table", ".dat");
+        out.deleteOnExit();
+
+        Writer w = new FileWriter(in);
+        w.write("1,2\r\n\n3,4");
+        w.close();
+        HeapFileEncoder.convert(in, out, BufferPool.getPageSize(), 2);
+        HeapFile hf = Utility.openHeapFile(2, out);
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        tuples.add(new ArrayList<Integer>(Arrays.asList(1, 2)));
+        tuples.add(new ArrayList<Integer>(Arrays.asList(3, 4)));
+        SystemTestUtil.matchTuples(hf, tuples);
+
+        w = new FileWriter(in);
+        w.write("1,2\n3\n");
+        w.close();
+        try {
+            HeapFileEncoder.convert(in, out, BufferPool.getPageSize(), 2);
+            fail("expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HeapFileEncoderTest.class);
+    }
+}
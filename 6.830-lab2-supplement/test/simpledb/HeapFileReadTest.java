@@ -77,6 +77,30 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.readPage() with pages requested out of order
+     */
+    @Test
+    public void readPageOutOfOrder() throws Exception {
+        HeapFile threePageFile = SystemTestUtil.createRandomHeapFile(2, 1100,
+                null, null);
+        assertEquals(3, threePageFile.numPages());
+
+        HeapPage last = (HeapPage) threePageFile.readPage(
+                new HeapPageId(threePageFile.getId(), 2));
+        HeapPage first = (HeapPage) threePageFile.readPage(
+                new HeapPageId(threePageFile.getId(), 0));
+        assertEquals(2, last.getId().pageNumber());
+        assertEquals(0, first.getNumEmptySlots());
+        assertEquals(504 * 3 - 1100, last.getNumEmptySlots());
+
+        try {
+            threePageFile.readPage(new HeapPageId(threePageFile.getId(), 3));
+            fail("expected exception");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
@@ -101,6 +125,28 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * A scan goes on past pages that have no tuples
+     */
+    @Test
+    public void testIteratorSkipsEmptyPages() throws Exception {
+        HeapFile threePageFile = SystemTestUtil.createRandomHeapFile(2, 1100,
+                null, null);
+        HeapPageId first = new HeapPageId(threePageFile.getId(), 0);
+        threePageFile.writePage(new HeapPage(first, HeapPage.createEmptyPageData()));
+        threePageFile.getFreeSpaceFile().deleteOnExit();
+
+        DbFileIterator it = threePageFile.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            assertNotNull(it.next());
+            count += 1;
+        }
+        assertEquals(1100 - 504, count);
+        it.close();
+    }
+
     @Test
     public void testIteratorClose() throws Exception {
         // make more than 1 page. Previous closed iterator would start fetching
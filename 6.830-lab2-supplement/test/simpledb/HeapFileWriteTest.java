@@ -1,5 +1,9 @@
 package simpledb;
 
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.io.FileOutputStream;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -43,6 +47,89 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Inserts go to a page freed by a delete before a new page is added,
+     * and the free-space map survives reopening the file
+     */
+    @Test public void reuseFreedPage() throws Exception {
+        Tuple first = null;
+        for (int i = 0; i < 504 * 2; ++i) {
+            Tuple t = Utility.getHeapTuple(i, 2);
+            empty.insertTuple(tid, t);
+            if (i == 0)
+                first = t;
+        }
+        assertEquals(2, empty.numPages());
+
+        empty.deleteTuple(tid, first);
+        Tuple t = Utility.getHeapTuple(-1, 2);
+        empty.insertTuple(tid, t);
+        assertEquals(2, empty.numPages());
+        assertEquals(0, t.getRecordId().getPageId().pageNumber());
+
+        // flush, then open the same file again through a new HeapFile
+        Database.getBufferPool().flushAllPages();
+        assertTrue(empty.getFreeSpaceFile().exists());
+        empty.deleteTuple(tid, t);
+        Database.getBufferPool().flushAllPages();
+        HeapFile reopened = new HeapFile(empty.getFile(), empty.getTupleDesc());
+        Database.getCatalog().addTable(reopened, "reopened");
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        Tuple u = Utility.getHeapTuple(-2, 2);
+        reopened.insertTuple(tid, u);
+        assertEquals(2, reopened.numPages());
+        assertEquals(0, u.getRecordId().getPageId().pageNumber());
+    }
+
+    /**
+     * A table with no pages and no free-space map takes inserts
+     */
+    @Test public void insertIntoEmptyFile() throws Exception {
+        File f = File.createTempFile("nopages", ".dat");
+        f.deleteOnExit();
+        HeapFile hf = Utility.openHeapFile(2, f);
+        assertEquals(0, hf.numPages());
+        assertFalse(hf.getFreeSpaceFile().exists());
+
+        Tuple t = Utility.getHeapTuple(1, 2);
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        assertEquals(1, hf.numPages());
+        assertEquals(0, t.getRecordId().getPageId().pageNumber());
+        hf.getFreeSpaceFile().deleteOnExit();
+    }
+
+    /**
+     * An insert that appends a page goes past the pages in the file, even
+     * when the table was opened with a stale page count
+     */
+    @Test public void appendPastStalePageCount() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        assertEquals(2, hf.numPages());
+        // both pages are full, as the free-space map says
+        FileOutputStream fsm = new FileOutputStream(hf.getFreeSpaceFile());
+        fsm.write(new byte[2]);
+        fsm.close();
+        hf.getFreeSpaceFile().deleteOnExit();
+        HeapFile stale = new HeapFile(hf.getFile(), hf.getTupleDesc(), hf.getId(), 1);
+        Database.getCatalog().addTable(stale, SystemTestUtil.getUUID());
+
+        Tuple t = Utility.getHeapTuple(1, 2);
+        Database.getBufferPool().insertTuple(tid, stale.getId(), t);
+        assertEquals(2, t.getRecordId().getPageId().pageNumber());
+        assertEquals(3, stale.numPages());
+
+        int count = 0;
+        DbFileIterator it = stale.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(504 * 2 + 1, count);
+    }
+
     /**
      * JUnit suite target
      */
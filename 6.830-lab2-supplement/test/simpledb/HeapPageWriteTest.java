@@ -126,6 +126,29 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Inserts reuse the lowest free slot, and survive a round trip through
+     * getPageData()
+     */
+    @Test public void reuseFreedSlot() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Iterator<Tuple> it = page.iterator();
+        it.next();
+        Tuple second = it.next();
+        page.deleteTuple(second);
+        assertEquals(null, second.getRecordId());
+
+        Tuple addition = Utility.getHeapTuple(7, 2);
+        page.insertTuple(addition);
+        assertEquals(1, addition.getRecordId().tupleno());
+
+        HeapPage copy = new HeapPage(pid, page.getPageData());
+        assertEquals(page.getNumEmptySlots(), copy.getNumEmptySlots());
+        it = copy.iterator();
+        it.next();
+        assertTrue(TestUtil.compareTuples(addition, it.next()));
+    }
+
     /**
      * JUnit suite target
      */
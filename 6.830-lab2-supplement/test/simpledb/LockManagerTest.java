@@ -0,0 +1,162 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.concurrent.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LockManagerTest extends SimpleDbTestBase {
+    private LockManager lm;
+    private PageId pid;
+    private TransactionId t1;
+    private TransactionId t2;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        lm = new LockManager();
+        pid = new HeapPageId(1, 0);
+        t1 = new TransactionId();
+        t2 = new TransactionId();
+    }
+
+    /** Ask for a lock on another thread. */
+    private Future<Void> acquireLater(final TransactionId tid, final Permissions perm) {
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        Future<Void> f = pool.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                lm.acquire(tid, pid, perm);
+                return null;
+            }
+        });
+        pool.shutdown();
+        return f;
+    }
+
+    /**
+     * Shared locks are granted to several transactions at once
+     */
+    @Test
+    public void sharedLocks() throws Exception {
+        lm.acquire(t1, pid, Permissions.READ_ONLY);
+        lm.acquire(t2, pid, Permissions.READ_ONLY);
+        assertTrue(lm.holdsLock(t1, pid));
+        assertTrue(lm.holdsLock(t2, pid));
+        assertEquals(0, lm.getWaits());
+    }
+
+    /**
+     * A transaction waits for an exclusive lock to be released, and the
+     * wait is counted
+     */
+    @Test
+    public void exclusiveWaits() throws Exception {
+        lm.acquire(t1, pid, Permissions.READ_WRITE);
+        Future<Void> other = acquireLater(t2, Permissions.READ_ONLY);
+        Thread.sleep(50);
+        assertFalse(other.isDone());
+        assertFalse(lm.holdsLock(t2, pid));
+
+        lm.releaseAll(t1);
+        other.get();
+        assertFalse(lm.holdsLock(t1, pid));
+        assertTrue(lm.holdsLock(t2, pid));
+        assertEquals(1, lm.getWaits());
+        assertTrue(lm.getWaitNanos() > 0);
+    }
+
+    /**
+     * A shared lock held alone is upgraded at once, and otherwise once the
+     * other readers are gone
+     */
+    @Test
+    public void upgrade() throws Exception {
+        lm.acquire(t1, pid, Permissions.READ_ONLY);
+        lm.acquire(t1, pid, Permissions.READ_WRITE);
+        assertTrue(lm.holdsExclusive(t1, pid));
+        lm.releaseAll(t1);
+
+        lm.acquire(t1, pid, Permissions.READ_ONLY);
+        lm.acquire(t2, pid, Permissions.READ_ONLY);
+        Future<Void> upgrade = acquireLater(t1, Permissions.READ_WRITE);
+        Thread.sleep(50);
+        assertFalse(upgrade.isDone());
+        lm.release(t2, pid);
+        upgrade.get();
+        assertTrue(lm.holdsExclusive(t1, pid));
+    }
+
+    /**
+     * A request that waits too long, or two upgrades of the same lock, are
+     * refused so that a deadlock cannot last
+     */
+    @Test
+    public void deadlocksAbort() throws Exception {
+        lm.setTimeout(50);
+        lm.acquire(t1, pid, Permissions.READ_WRITE);
+        try {
+            lm.acquire(t2, pid, Permissions.READ_WRITE);
+            fail("the lock is held by another transaction");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        assertEquals(1, lm.getTimeouts());
+        assertFalse(lm.holdsLock(t2, pid));
+        lm.releaseAll(t1);
+
+        lm.setTimeout(LockManager.DEFAULT_TIMEOUT_MILLIS);
+        lm.acquire(t1, pid, Permissions.READ_ONLY);
+        lm.acquire(t2, pid, Permissions.READ_ONLY);
+        Future<Void> upgrade = acquireLater(t1, Permissions.READ_WRITE);
+        Thread.sleep(50);
+        try {
+            lm.acquire(t2, pid, Permissions.READ_WRITE);
+            fail("both transactions wait to upgrade");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        lm.releaseAll(t2);
+        upgrade.get();
+        assertTrue(lm.holdsExclusive(t1, pid));
+    }
+
+    /**
+     * The buffer pool locks the pages it hands out, and releases them when
+     * the transaction completes
+     */
+    @Test
+    public void bufferPoolLocks() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        BufferPool bp = Database.getBufferPool();
+        HeapPageId p0 = new HeapPageId(hf.getId(), 0);
+        HeapPageId p1 = new HeapPageId(hf.getId(), 1);
+        bp.getPage(t1, p0, Permissions.READ_ONLY);
+        bp.getPage(t1, p1, Permissions.READ_WRITE);
+        assertTrue(bp.holdsLock(t1, p0));
+        assertTrue(bp.holdsLock(t1, p1));
+
+        bp.releasePage(t1, p0);
+        assertFalse(bp.holdsLock(t1, p0));
+        bp.getPage(t2, p0, Permissions.READ_WRITE);
+
+        bp.transactionComplete(t1);
+        assertFalse(bp.holdsLock(t1, p1));
+        bp.getPage(t2, p1, Permissions.READ_WRITE);
+        assertEquals(0, bp.getLockManager().getWaits());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
@@ -0,0 +1,571 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.GZIPInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LogFileTest extends SimpleDbTestBase {
+    private File f;
+    private LogFile log;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        f = File.createTempFile("log", ".tmp");
+        f.deleteOnExit();
+        log = new LogFile(f);
+    }
+
+    /**
+     * Remove the segment files of the log.
+     */
+    @After
+    public void tearDown() throws Exception {
+        for (File s : f.getAbsoluteFile().getParentFile().listFiles()) {
+            if (s.getName().startsWith(f.getName() + "."))
+                s.delete();
+        }
+    }
+
+    /**
+     * Concurrent commits share forces of the log
+     */
+    @Test
+    public void groupCommit() throws Exception {
+        log.setGroupCommit(5000, 64);
+        final int threads = 8;
+        final int commits = 20;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        for (int i = 0; i < threads; i++) {
+            results.add(pool.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    for (int j = 0; j < commits; j++) {
+                        TransactionId tid = new TransactionId();
+                        log.logXactionBegin(tid);
+                        log.logCommit(tid);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> r : results)
+            r.get();
+        pool.shutdown();
+
+        assertEquals(2 * threads * commits, log.getTotalRecords());
+        assertTrue(log.getCommitForces() > 0);
+        assertTrue(log.getCommitForces() < threads * commits);
+    }
+
+    /* the log flusher threads running now */
+    private static Set<Thread> flushers() {
+        Set<Thread> s = new HashSet<Thread>();
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().equals("simpledb-log-flusher"))
+                s.add(t);
+        }
+        return s;
+    }
+
+    /**
+     * Shutting down lets the log flusher force the commits it is waiting
+     * on, and waits for it to exit before the log is closed
+     */
+    @Test
+    public void shutdownFlushesCommits() throws Exception {
+        Set<Thread> others = flushers();
+        log.setGroupCommit(5000000, 64);
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        Future<Void> commit = pool.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                TransactionId tid = new TransactionId();
+                log.logXactionBegin(tid);
+                log.logCommit(tid);
+                return null;
+            }
+        });
+        pool.shutdown();
+        // the flusher is still waiting for more commits to join the force
+        Thread.sleep(100);
+        assertFalse(commit.isDone());
+        Set<Thread> started = flushers();
+        started.removeAll(others);
+        assertEquals(1, started.size());
+
+        log.shutdown();
+        assertFalse(started.iterator().next().isAlive());
+        commit.get(1, TimeUnit.SECONDS);
+        assertEquals(1, log.getCommitForces());
+    }
+
+    /**
+     * Records are gathered in memory until the log is forced, and can be
+     * read back afterwards
+     */
+    @Test
+    public void bufferedAppend() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504, null, null);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        Page empty = new HeapPage(pid, HeapPage.createEmptyPageData());
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long start = log.currentOffset;
+        // a page full of new tuples is logged as whole images
+        log.logWrite(tid, empty, hf.readPage(pid));
+        assertTrue(log.currentOffset - start > 2 * BufferPool.getPageSize());
+        assertTrue(log.segments.end() < log.currentOffset);
+
+        log.force();
+        assertEquals(log.currentOffset, log.segments.end());
+
+        // truncation keeps every record of the live transaction
+        log.logCheckpoint();
+        assertEquals(log.currentOffset, log.segments.end());
+        assertTrue(log.segments.end() - log.segments.first() > 2 * BufferPool.getPageSize());
+    }
+
+    /** Delete the first tuple of a page read from disk, and return the page. */
+    private static HeapPage deleteFirst(HeapFile hf, int pgNo) throws Exception {
+        HeapPage p = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), pgNo));
+        p.deleteTuple(p.iterator().next());
+        return p;
+    }
+
+    /**
+     * Updating a tuple logs the bytes that changed, not the whole page
+     */
+    @Test
+    public void diffRecord() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504, null, null);
+        HeapPage p = deleteFirst(hf, 0);
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long start = log.currentOffset;
+        log.logWrite(tid, p.getBeforeImage(), p);
+        assertTrue(log.currentOffset - start < 200);
+
+        int[] ranges = LogFile.diffRanges(p.getBeforeImage().getPageData(), p.getPageData());
+        assertEquals(4, ranges.length);
+        assertEquals(0, ranges[0]);
+        assertEquals(1, ranges[1]);
+    }
+
+    /**
+     * Rollback puts back the pages a transaction wrote to disk
+     */
+    @Test
+    public void rollback() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        byte[] original = hf.readPage(new HeapPageId(hf.getId(), 1)).getPageData();
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        for (int i = 0; i < 2; i++) {
+            // two updates of the same page, each logged against the last
+            HeapPage p = deleteFirst(hf, 1);
+            log.logWrite(tid, p.getBeforeImage(), p);
+            hf.writePage(p);
+        }
+
+        log.rollback(tid);
+        assertArrayEquals(original, hf.readPage(new HeapPageId(hf.getId(), 1)).getPageData());
+    }
+
+    /**
+     * Rollback logs what it undid, so that recovery does not undo it a
+     * second time over the updates of a later transaction
+     */
+    @Test
+    public void compensation() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504, null, null);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        TransactionId aborted = new TransactionId();
+        log.logXactionBegin(aborted);
+        HeapPage p = deleteFirst(hf, 0);
+        log.logWrite(aborted, p.getBeforeImage(), p);
+        long update = p.getLsn();
+        hf.writePage(p);
+
+        // the CLR is the last record of the transaction, and stamps the page
+        log.rollback(aborted);
+        long clr = log.tidToLastLogRecord.get(aborted.getId());
+        assertTrue(clr > update);
+        assertEquals(clr, hf.getPageLsn(0));
+
+        TransactionId winner = new TransactionId();
+        log.logXactionBegin(winner);
+        HeapPage committed = deleteFirst(hf, 0);
+        log.logWrite(winner, committed.getBeforeImage(), committed);
+        hf.writePage(committed);
+        log.logCommit(winner);
+
+        // crash before the abort record of the rolled back transaction
+        LogFile restarted = new LogFile(f);
+        restarted.recover();
+        assertArrayEquals(committed.getPageData(), hf.readPage(pid).getPageData());
+    }
+
+    /**
+     * Recovery redoes committed updates that did not reach the disk, and
+     * undoes unfinished ones that did
+     */
+    @Test
+    public void recover() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        TransactionId winner = new TransactionId();
+        log.logXactionBegin(winner);
+        HeapPage committed = deleteFirst(hf, 0);
+        log.logWrite(winner, committed.getBeforeImage(), committed);
+        log.logCommit(winner);
+
+        TransactionId loser = new TransactionId();
+        log.logXactionBegin(loser);
+        byte[] original = hf.readPage(new HeapPageId(hf.getId(), 1)).getPageData();
+        HeapPage p = deleteFirst(hf, 1);
+        log.logWrite(loser, p.getBeforeImage(), p);
+        log.force();
+        hf.writePage(p);
+
+        // crash, and start again from the same log
+        LogFile restarted = new LogFile(f);
+        restarted.recover();
+        assertArrayEquals(committed.getPageData(),
+                hf.readPage(new HeapPageId(hf.getId(), 0)).getPageData());
+        assertArrayEquals(original, hf.readPage(new HeapPageId(hf.getId(), 1)).getPageData());
+    }
+
+    /**
+     * Redo leaves alone a page written with the LSN of the update, or a
+     * later one
+     */
+    @Test
+    public void redoSkipsPagesOnDisk() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        HeapPage p = deleteFirst(hf, 0);
+        log.logWrite(tid, p.getBeforeImage(), p);
+        assertTrue(p.getLsn() > 0);
+        log.logCommit(tid);
+
+        // the page on disk claims to hold the update, so it is not redone
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage onDisk = (HeapPage) hf.readPage(pid);
+        onDisk.setLsn(p.getLsn());
+        hf.writePage(onDisk);
+        assertEquals(p.getLsn(), hf.getPageLsn(0));
+
+        LogFile restarted = new LogFile(f);
+        restarted.recover();
+        assertArrayEquals(onDisk.getPageData(), hf.readPage(pid).getPageData());
+
+        // once it does not, it is
+        onDisk.setLsn(p.getLsn() - 1);
+        hf.writePage(onDisk);
+        restarted = new LogFile(f);
+        restarted.recover();
+        assertArrayEquals(p.getPageData(), hf.readPage(pid).getPageData());
+        assertEquals(p.getLsn(), hf.getPageLsn(0));
+    }
+
+    /**
+     * The LSN of a page reaches the .lsn file only once the page itself has
+     * been forced
+     */
+    @Test
+    public void pageLsnFollowsForce() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        HeapPage p = deleteFirst(hf, 1);
+        log.logWrite(tid, p.getBeforeImage(), p);
+        hf.writePage(p);
+
+        assertEquals(p.getLsn(), hf.getPageLsn(1));
+        assertEquals(0, lsnOnDisk(hf, 1));
+        hf.force();
+        assertEquals(p.getLsn(), lsnOnDisk(hf, 1));
+        assertEquals(p.getLsn(), hf.getPageLsn(1));
+    }
+
+    /* the LSN of a page as read from the .lsn file, or 0 */
+    private static long lsnOnDisk(HeapFile hf, int pgNo) throws Exception {
+        File lsns = hf.getLsnFile();
+        if (lsns.length() < (pgNo + 1) * 8)
+            return 0;
+        DataInputStream dis = new DataInputStream(new FileInputStream(lsns));
+        try {
+            dis.skipBytes(pgNo * 8);
+            return dis.readLong();
+        } finally {
+            dis.close();
+        }
+    }
+
+    /**
+     * LSNs stay the same when a checkpoint truncates the log, so recovery
+     * still finds the first record of a transaction older than the
+     * checkpoint
+     */
+    @Test
+    public void recoverAfterTruncate() throws Exception {
+        log = new LogFile(f, 256);
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        for (int i = 0; i < 100; i++) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            log.logCommit(tid);
+        }
+        TransactionId loser = new TransactionId();
+        long first = log.currentOffset;
+        log.logXactionBegin(loser);
+        long end = log.currentOffset;
+        log.logCheckpoint();
+        assertTrue(log.currentOffset > end);
+        assertTrue(log.segments.first() > LogFile.FIRST_LSN);
+        assertTrue(log.segments.first() <= first);
+
+        byte[] original = hf.readPage(new HeapPageId(hf.getId(), 1)).getPageData();
+        HeapPage p = deleteFirst(hf, 1);
+        log.logWrite(loser, p.getBeforeImage(), p);
+        log.force();
+        hf.writePage(p);
+
+        TransactionId winner = new TransactionId();
+        log.logXactionBegin(winner);
+        HeapPage committed = deleteFirst(hf, 0);
+        log.logWrite(winner, committed.getBeforeImage(), committed);
+        log.logCommit(winner);
+
+        LogFile restarted = new LogFile(f);
+        restarted.recover();
+        assertArrayEquals(committed.getPageData(),
+                hf.readPage(new HeapPageId(hf.getId(), 0)).getPageData());
+        assertArrayEquals(original, hf.readPage(new HeapPageId(hf.getId(), 1)).getPageData());
+    }
+
+    /**
+     * Redo spread over several threads applies the updates of each page in
+     * order
+     */
+    @Test
+    public void parallelRedo() throws Exception {
+        int pages = 16;
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * pages, null, null);
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        HeapPage[] latest = new HeapPage[pages];
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < pages; i++) {
+                HeapPage p = latest[i];
+                if (p == null) {
+                    p = deleteFirst(hf, i);
+                } else {
+                    p.deleteTuple(p.iterator().next());
+                }
+                log.logWrite(tid, p.getBeforeImage(), p);
+                p.setBeforeImage();
+                // the first update reaches the disk, the others do not
+                if (round == 0)
+                    hf.writePage(p);
+                latest[i] = p;
+            }
+        }
+        log.logCommit(tid);
+
+        LogFile restarted = new LogFile(f);
+        restarted.setRedoThreads(4);
+        restarted.recover();
+        for (int i = 0; i < pages; i++) {
+            assertArrayEquals(latest[i].getPageData(),
+                    hf.readPage(new HeapPageId(hf.getId(), i)).getPageData());
+        }
+    }
+
+    /**
+     * A checkpoint writes no page, and keeps the updates of pages that are
+     * not on disk yet for recovery to redo
+     */
+    @Test
+    public void fuzzyCheckpoint() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        byte[] original = hf.readPage(pid).getPageData();
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        HeapPage p = deleteFirst(hf, 0);
+        log.logWrite(tid, p.getBeforeImage(), p);
+        log.logCheckpoint();
+        assertArrayEquals(original, hf.readPage(pid).getPageData());
+        log.logCommit(tid);
+
+        LogFile restarted = new LogFile(f);
+        restarted.recover();
+        assertArrayEquals(p.getPageData(), hf.readPage(pid).getPageData());
+
+        // once written, the page leaves the dirty page table, and its
+        // update is no longer looked at
+        log.pageWritten(pid);
+        log.logCheckpoint();
+        restarted = new LogFile(f);
+        hf.writePage(new HeapPage(pid, original));
+        restarted.recover();
+        assertArrayEquals(original, hf.readPage(pid).getPageData());
+    }
+
+    /**
+     * Records run on across segments, and recovery reads them back after
+     * a restart
+     */
+    @Test
+    public void segments() throws Exception {
+        log = new LogFile(f, 256);
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        Page empty = new HeapPage(pid, HeapPage.createEmptyPageData());
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long begin = log.tidToFirstLogRecord.get(tid.getId());
+        long start = log.currentOffset;
+        log.logWrite(tid, hf.readPage(pid), empty);
+        log.logCommit(tid);
+        assertTrue(log.segments.size() > 2 * BufferPool.getPageSize() / 256);
+
+        LogReader in = new LogReader(log.segments, 64);
+        in.seek(start);
+        assertEquals(LogFile.UPDATE_RECORD, in.readInt());
+        assertEquals(tid.getId(), in.readLong());
+        assertEquals(begin, in.readLong());
+        assertArrayEquals(hf.readPage(pid).getPageData(), log.readPageData(in).getPageData());
+        assertArrayEquals(empty.getPageData(), log.readPageData(in).getPageData());
+        assertEquals(start, in.readLong());
+
+        // a restart opens the segments and finds the update to redo
+        LogFile restarted = new LogFile(f, 256);
+        assertEquals(log.segments.size(), restarted.segments.size());
+        restarted.recover();
+        assertArrayEquals(empty.getPageData(), hf.readPage(pid).getPageData());
+
+        // a log started afresh goes on from the LSNs of the last one
+        LogFile fresh = new LogFile(f, 256);
+        TransactionId next = new TransactionId();
+        fresh.logXactionBegin(next);
+        assertEquals(log.currentOffset, fresh.segments.first());
+        assertEquals(1, fresh.segments.size());
+    }
+
+    /**
+     * Truncation drops whole segments, compressed into the archive
+     * directory if there is one
+     */
+    @Test
+    public void archiveSegments() throws Exception {
+        File archive = File.createTempFile("archive", "");
+        archive.delete();
+        archive.mkdir();
+        archive.deleteOnExit();
+
+        log = new LogFile(f, 256);
+        log.setArchiveDirectory(archive);
+        for (int i = 0; i < 100; i++) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            log.logCommit(tid);
+        }
+        int before = log.segments.size();
+        log.logCheckpoint();
+        int after = log.segments.size();
+        assertTrue(after < before);
+
+        // the checkpoint record itself may have opened a segment
+        File[] archived = archive.listFiles();
+        assertTrue(archived.length >= before - after);
+        assertTrue(archived.length <= before + 1 - after);
+        for (File gz : archived) {
+            gz.deleteOnExit();
+            assertTrue(gz.getName().startsWith(f.getName() + "."));
+            DataInputStream in = new DataInputStream(new GZIPInputStream(new FileInputStream(gz)));
+            try {
+                assertEquals(LogSegments.MAGIC, in.readInt());
+                long startLsn = in.readLong();
+                assertTrue(startLsn < log.segments.first());
+                assertTrue(gz.getName().endsWith(String.format("%016x.gz", startLsn)));
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Forcing a segment closed other than by truncation fails, rather than
+     * pass its bytes off as forced
+     */
+    @Test
+    public void forceClosedSegment() throws Exception {
+        LogSegments segments = new LogSegments(f, 256);
+        segments.reset(LogFile.FIRST_LSN);
+        segments.write(ByteBuffer.wrap(new byte[16]), LogFile.FIRST_LSN);
+        LogSegments.Segment s = segments.unforced().get(0);
+        segments.close();
+        try {
+            s.force();
+            fail("the segment was closed before its bytes were forced");
+        } catch (ClosedChannelException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Pages are read back from the log through their codec, whatever the
+     * size of the read window
+     */
+    @Test
+    public void pageCodec() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504, null, null);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        Page empty = new HeapPage(pid, HeapPage.createEmptyPageData());
+        Page p = hf.readPage(pid);
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long start = log.currentOffset;
+        log.logWrite(tid, empty, p);
+        log.force();
+
+        for (int window : new int[] { 16, 64, LogReader.DEFAULT_CAPACITY }) {
+            LogReader in = new LogReader(log.segments, window);
+            in.seek(start);
+            assertEquals(LogFile.UPDATE_RECORD, in.readInt());
+            assertEquals(tid.getId(), in.readLong());
+            assertEquals(log.tidToFirstLogRecord.get(tid.getId()).longValue(), in.readLong());
+            assertArrayEquals(empty.getPageData(), log.readPageData(in).getPageData());
+            Page read = log.readPageData(in);
+            assertEquals(pid, read.getId());
+            assertArrayEquals(p.getPageData(), read.getPageData());
+            assertEquals(start, in.readLong());
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFileTest.class);
+    }
+}
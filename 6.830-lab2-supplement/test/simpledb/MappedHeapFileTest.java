@@ -0,0 +1,83 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.util.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class MappedHeapFileTest extends SimpleDbTestBase {
+    private ArrayList<ArrayList<Integer>> tuples;
+    private MappedHeapFile mf;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 1100, 1 << 16, null, tuples);
+        mf = new MappedHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(mf, SystemTestUtil.getUUID());
+    }
+
+    /**
+     * Unit test for MappedHeapFile.readPage()
+     */
+    @Test
+    public void readPage() throws Exception {
+        HeapFile plain = new HeapFile(mf.getFile(), mf.getTupleDesc());
+        for (int i = mf.numPages() - 1; i >= 0; i--) {
+            HeapPageId pid = new HeapPageId(mf.getId(), i);
+            HeapPage mapped = (HeapPage) mf.readPage(pid);
+            assertArrayEquals(plain.readPage(pid).getPageData(), mapped.getPageData());
+        }
+
+        try {
+            mf.readPage(new HeapPageId(mf.getId(), mf.numPages()));
+            fail("expected exception");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    /**
+     * A page read from the mapping is copied when it is first changed: the
+     * file and the before image keep the old contents until it is written
+     */
+    @Test
+    public void modifyCopiesPage() throws Exception {
+        HeapPageId pid = new HeapPageId(mf.getId(), 0);
+        HeapPage page = (HeapPage) mf.readPage(pid);
+        byte[] before = page.getPageData();
+
+        Tuple t = page.iterator().next();
+        page.deleteTuple(t);
+        assertArrayEquals(before, mf.readPage(pid).getPageData());
+        assertArrayEquals(before, page.getBeforeImage().getPageData());
+        assertFalse(Arrays.equals(before, page.getPageData()));
+
+        mf.writePage(page);
+        assertArrayEquals(page.getPageData(), mf.readPage(pid).getPageData());
+    }
+
+    /**
+     * Scans a MappedHeapFile through the buffer pool
+     */
+    @Test
+    public void scan() throws Exception {
+        SystemTestUtil.matchTuples(mf, tuples);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MappedHeapFileTest.class);
+    }
+}
@@ -0,0 +1,62 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class TupleBatchTest extends SimpleDbTestBase {
+
+  /**
+   * A predicate narrows the selection of a batch without moving rows
+   */
+  @Test public void filterSelects() throws Exception {
+    TupleBatch batch = new TupleBatch(Utility.getTupleDesc(2), 8);
+    for (int i = 0; i < 8; i++)
+      batch.addTuple(Utility.getHeapTuple(new int[] { i, -i }));
+
+    new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, TestUtil.getField(5)).filter(batch);
+    assertEquals(3, batch.size());
+    for (int i = 0; i < batch.size(); i++) {
+      assertEquals(5 + i, batch.row(i));
+      assertEquals(-(5 + i), batch.getInt(1, batch.row(i)));
+      assertTrue(TestUtil.compareTuples(Utility.getHeapTuple(new int[] { 5 + i, -(5 + i) }),
+          batch.getTuple(i)));
+    }
+  }
+
+  /**
+   * Batches and single tuples can be read from the same operator
+   */
+  @Test public void mixBatchesAndTuples() throws Exception {
+    DbIterator scan = new TestUtil.MockScan(0, TupleBatch.DEFAULT_CAPACITY + 10, 2);
+    Filter op = new Filter(new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ,
+        TestUtil.getField(0)), scan);
+    op.open();
+
+    assertTrue(TestUtil.compareTuples(Utility.getHeapTuple(0, 2), op.next()));
+    assertTrue(op.hasNext());
+    TupleBatch batch = op.nextBatch();
+    assertEquals(TupleBatch.DEFAULT_CAPACITY - 1, batch.size());
+    assertTrue(TestUtil.compareTuples(Utility.getHeapTuple(1, 2), batch.getTuple(0)));
+
+    batch = op.nextBatch();
+    assertEquals(10, batch.size());
+    assertTrue(TestUtil.compareTuples(Utility.getHeapTuple(TupleBatch.DEFAULT_CAPACITY, 2),
+        batch.getTuple(0)));
+    assertNull(op.nextBatch());
+    assertTrue(TestUtil.checkExhausted(op));
+    op.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TupleBatchTest.class);
+  }
+}
@@ -167,6 +167,28 @@ public class TupleDescTest extends SimpleDbTestBase {
         assertFalse(intString.equals(singleInt2));
     }
 
+    /**
+     * Unit test for TupleDesc.getFieldOffset()
+     */
+    @Test public void getFieldOffset() {
+        TupleDesc td = new TupleDesc(new Type[]{Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE});
+        assertEquals(0, td.getFieldOffset(0));
+        assertEquals(Type.INT_TYPE.getLen(), td.getFieldOffset(1));
+        assertEquals(Type.INT_TYPE.getLen() + Type.STRING_TYPE.getLen(), td.getFieldOffset(2));
+        assertEquals(td.getFieldOffset(2) + Type.INT_TYPE.getLen(), td.getSize());
+    }
+
+    /**
+     * Equal TupleDescs have equal hash codes, whatever their field names
+     */
+    @Test public void testHashCode() {
+        TupleDesc named = new TupleDesc(new Type[]{Type.INT_TYPE, Type.STRING_TYPE},
+                new String[]{"a", "b"});
+        TupleDesc anonymous = new TupleDesc(new Type[]{Type.INT_TYPE, Type.STRING_TYPE});
+        assertTrue(named.equals(anonymous));
+        assertEquals(named.hashCode(), anonymous.hashCode());
+    }
+
     /**
      * JUnit suite target
      */
@@ -29,6 +29,37 @@ public class TupleTest extends SimpleDbTestBase {
         assertEquals(new IntField(37), tup.getField(1));
     }
 
+    /**
+     * Unit test for Tuple.getInt() and Tuple.setInt()
+     */
+    @Test public void modifyInts() {
+        Tuple tup = new Tuple(Utility.getTupleDesc(2));
+        tup.setField(0, new IntField(5));
+        assertEquals(5, tup.getInt(0));
+
+        tup.setInt(0, 7);
+        tup.setInt(1, -3);
+        assertEquals(new IntField(7), tup.getField(0));
+        assertEquals(new IntField(-3), tup.getField(1));
+    }
+
+    /**
+     * Tuples read from disk decode string fields on demand
+     */
+    @Test public void readFrom() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+        java.io.ByteArrayOutputStream baos = new java.io.ByteArrayOutputStream();
+        java.io.DataOutputStream dos = new java.io.DataOutputStream(baos);
+        dos.writeByte(9);
+        new IntField(42).serialize(dos);
+        new StringField("hello", Type.STRING_LEN).serialize(dos);
+
+        Tuple tup = new Tuple(td);
+        tup.readFrom(baos.toByteArray(), 1);
+        assertEquals(42, tup.getInt(0));
+        assertEquals(new StringField("hello", Type.STRING_LEN), tup.getField(1));
+    }
+
     /**
      * Unit test for Tuple.getTupleDesc()
      */